@@ -0,0 +1,200 @@
+package com.rafasimionato.wmproject.benchmarks;
+
+import java.lang.ref.SoftReference;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rafasimionato.wmproject.image.ConcurrentLruCache;
+
+/**
+ * Benchmarks for the hard part of the bitmap cache { @see ConcurrentLruCache }.
+ * Values stand in for avatar bitmaps, each one accounted by the bytes of an
+ * avatar decoded for a row.
+ *
+ * The lookup benchmarks request avatars with Zipfian popularity
+ * { @see ZipfianKeys }, putting each missing one in the cache, as the
+ * download tasks do. They run with 1, 4 and 8 threads, and the hits and
+ * misses counted give the hit rate of each budget and skew.
+ *
+ * The eviction benchmarks put avatars in a full cache, so every put evicts
+ * the least-recently accessed one. Evicted avatars are either dropped or
+ * demoted to a soft cache, as BitmapCache does with the ones no bitmap pool
+ * takes, which gives the cost of the demotion. The pool itself depends on
+ * the Android SDK, so it's not measured here.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentLruCacheBenchmark {
+
+    // Bytes of an avatar decoded for a row : 96 x 96 pixels, 4 bytes each
+    private static final int AVATAR_BYTES = 96 * 96 * 4;
+
+    // Number of different avatars requested
+    private static final int AVATARS = 5000;
+
+    // It stands in for a decoded bitmap
+    private static final class Avatar {
+
+        final int bytes;
+
+        Avatar(int bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    private static class AvatarCache extends ConcurrentLruCache<String, Avatar> {
+
+        AvatarCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected int sizeOf(String key, Avatar avatar) {
+            return avatar.bytes;
+        }
+    }
+
+    // Number of avatars the budget of the cache holds
+    @Param({ "100", "500" })
+    public int cachedAvatars;
+
+    // Skew of the Zipfian popularity of the avatars
+    @Param({ "0.8", "1.1" })
+    public double exponent;
+
+    private String[] keys;
+    private ZipfianKeys zipfianKeys;
+    private AvatarCache lookupCache;
+    private AvatarCache droppingCache;
+    private AvatarCache demotingCache;
+    private final ConcurrentHashMap<String, SoftReference<Avatar>> softCache =
+            new ConcurrentHashMap<String, SoftReference<Avatar>>();
+    private final AtomicInteger nextEvictingKey = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        private static final AtomicInteger seeds = new AtomicInteger();
+
+        final Random random = new Random(seeds.incrementAndGet());
+    }
+
+    // Hits and misses of the lookups, reported next to the throughput
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class HitCounters {
+
+        public long hits;
+        public long misses;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            hits = 0;
+            misses = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        keys = new String[AVATARS];
+        for (int i = 0; i < AVATARS; i++) {
+            keys[i] = "https://lh3.googleusercontent.com/-" + (100000 + i) + "/photo.jpg?sz=96";
+        }
+        zipfianKeys = new ZipfianKeys(AVATARS, exponent);
+
+        int maxSize = cachedAvatars * AVATAR_BYTES;
+        lookupCache = new AvatarCache(maxSize);
+        droppingCache = new AvatarCache(maxSize);
+        demotingCache = new AvatarCache(maxSize) {
+
+            @Override
+            protected void entryEvicted(String key, Avatar avatar) {
+                softCache.put(key, new SoftReference<Avatar>(avatar));
+            }
+        };
+        for (int i = 0; i < cachedAvatars; i++) {
+            droppingCache.put(keys[i], new Avatar(AVATAR_BYTES));
+            demotingCache.put(keys[i], new Avatar(AVATAR_BYTES));
+        }
+        nextEvictingKey.set(cachedAvatars);
+    }
+
+    private Avatar lookup(ThreadState state, HitCounters counters) {
+        String key = keys[zipfianKeys.next(state.random)];
+        Avatar avatar = lookupCache.get(key);
+        if (avatar == null) {
+            counters.misses++;
+            avatar = new Avatar(AVATAR_BYTES);
+            lookupCache.put(key, avatar);
+        } else {
+            counters.hits++;
+        }
+        return avatar;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Avatar lookup1Thread(ThreadState state, HitCounters counters) {
+        return lookup(state, counters);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Avatar lookup4Threads(ThreadState state, HitCounters counters) {
+        return lookup(state, counters);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Avatar lookup8Threads(ThreadState state, HitCounters counters) {
+        return lookup(state, counters);
+    }
+
+    // The key following all the ones in the cache, which holds fewer avatars
+    // than the keys
+    private String nextEvictingKey() {
+        return keys[(nextEvictingKey.getAndIncrement() & Integer.MAX_VALUE) % AVATARS];
+    }
+
+    /**
+     * It puts a new avatar in the full cache, evicting the least-recently
+     * accessed one, which is dropped.
+     */
+    @Benchmark
+    public Avatar evictAndDrop() {
+        String key = nextEvictingKey();
+        return droppingCache.put(key, new Avatar(AVATAR_BYTES));
+    }
+
+    /**
+     * It puts a new avatar in the full cache, evicting the least-recently
+     * accessed one, which is demoted to the soft cache.
+     */
+    @Benchmark
+    public Avatar evictAndDemote() {
+        String key = nextEvictingKey();
+        return demotingCache.put(key, new Avatar(AVATAR_BYTES));
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.rafasimionato.wmproject.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rafasimionato.wmproject.data.Contact;
+
+/**
+ * Benchmarks for the construction of contacts { @see Contact }, which strips
+ * the size parameter from every picture URL received. It's measured with 1, 4
+ * and 8 threads, as contacts are created by the threads converting pages of
+ * people and by the one loading the stored contacts at the same time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContactBenchmark {
+
+    private static final int CONTACTS = 1024;
+
+    private String[] ids;
+    private String[] names;
+    private String[] profileUrls;
+    private String[] pictureUrls;
+
+    // Index of the next contact created by each thread
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        int next = 0;
+    }
+
+    @Setup
+    public void setUp() {
+        List<Contact> contacts = FakeContacts.create(CONTACTS, 1);
+        ids = new String[CONTACTS];
+        names = new String[CONTACTS];
+        profileUrls = new String[CONTACTS];
+        pictureUrls = new String[CONTACTS];
+        for (int i = 0; i < CONTACTS; i++) {
+            Contact contact = contacts.get(i);
+            ids[i] = contact.getId();
+            names[i] = contact.getName();
+            profileUrls[i] = contact.getProfileUrl();
+            // The URL as received, with its size parameter
+            pictureUrls[i] = contact.getPictureUrl() + "?sz=50";
+        }
+    }
+
+    private Contact create(ThreadState state) {
+        int i = state.next++ & (CONTACTS - 1);
+        return new Contact(ids[i], names[i], profileUrls[i], pictureUrls[i]);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Contact create1Thread(ThreadState state) {
+        return create(state);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Contact create4Threads(ThreadState state) {
+        return create(state);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Contact create8Threads(ThreadState state) {
+        return create(state);
+    }
+
+}
@@ -0,0 +1,125 @@
+package com.rafasimionato.wmproject.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.runner.IterationType;
+import org.openjdk.jol.info.GraphLayout;
+
+import com.rafasimionato.wmproject.data.CompactContactList;
+import com.rafasimionato.wmproject.data.Contact;
+
+/**
+ * Benchmarks for the heap footprint of the contacts kept by the application,
+ * in an ArrayList of contacts and in a compact contact list
+ * { @see CompactContactList }, with 1k, 10k and 50k contacts.
+ * 
+ * Each benchmark builds the list from the fields received for each person, as
+ * the pages of people are converted, and reports the retained size of the
+ * list as the retainedBytes counter. It's the size of every object reachable
+ * from the list, walked by JOL, so the strings held by the contacts of the
+ * ArrayList are included. The time to build each list is measured as well,
+ * and the bytes allocated to build it are reported when run with -prof gc.
+ * 
+ * The benchmarks are forked with compact strings disabled, so strings take
+ * two bytes per char as on Android (and on JDK 8, which ignores the option).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-XX:+IgnoreUnrecognizedVMOptions", "-XX:-CompactStrings" })
+public class ContactListFootprintBenchmark {
+
+    @Param({ "1000", "10000", "50000" })
+    public int contacts;
+
+    private String[] ids;
+    private String[] names;
+    private String[] profileUrls;
+    private String[] pictureUrls;
+
+    // Retained size of the last list built, measured at the end of the first
+    // measurement iteration, out of the time measured. Events are summed over
+    // the iterations, so it's only counted once
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+
+        public long retainedBytes;
+
+        Object lastList;
+        boolean measured = false;
+
+        @TearDown(Level.Iteration)
+        public void measure(IterationParams params) {
+            retainedBytes = 0;
+            if (params.getType() == IterationType.MEASUREMENT && !measured) {
+                retainedBytes = GraphLayout.parseInstance(lastList).totalSize();
+                measured = true;
+            }
+            lastList = null;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        List<Contact> received = FakeContacts.create(contacts, 1);
+        ids = new String[contacts];
+        names = new String[contacts];
+        profileUrls = new String[contacts];
+        pictureUrls = new String[contacts];
+        for (int i = 0; i < contacts; i++) {
+            Contact contact = received.get(i);
+            ids[i] = contact.getId();
+            names[i] = contact.getName();
+            profileUrls[i] = contact.getProfileUrl();
+            // The URL as received, with its size parameter
+            pictureUrls[i] = contact.getPictureUrl() + "?sz=50";
+        }
+    }
+
+    private Contact receive(int i) {
+        return new Contact(ids[i], names[i], profileUrls[i], pictureUrls[i]);
+    }
+
+    @Benchmark
+    public void arrayList(Footprint footprint, Blackhole blackhole) {
+        ArrayList<Contact> list = new ArrayList<Contact>(contacts);
+        for (int i = 0; i < contacts; i++) {
+            list.add(receive(i));
+        }
+        footprint.lastList = list;
+        blackhole.consume(list);
+    }
+
+    @Benchmark
+    public void compactContactList(Footprint footprint, Blackhole blackhole) {
+        CompactContactList list = new CompactContactList();
+        for (int i = 0; i < contacts; i++) {
+            list.add(receive(i));
+        }
+        list.trimToSize();
+        footprint.lastList = list;
+        blackhole.consume(list);
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.rafasimionato.wmproject.benchmarks;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rafasimionato.wmproject.data.CompactContactList;
+import com.rafasimionato.wmproject.data.ContactSearchIndex;
+
+/**
+ * Benchmarks for the search index used to filter the contacts by name
+ * { @see ContactSearchIndex } : building it, which is done each time the
+ * contacts change, and searching it, which is done for each key typed. The
+ * search benchmark runs all the queries of a name typed key by key.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContactSearchIndexBenchmark {
+
+    @Param({ "1000", "10000", "50000" })
+    public int contacts;
+
+    // Queries as typed, key by key, ending with two words and an accent
+    private static final String[] QUERIES = { "j", "jo", "jos", "jose", "jose s", "jose si",
+            "Jos\u00e9 Silva" };
+
+    private CompactContactList contactList;
+    private ContactSearchIndex searchIndex;
+
+    @Setup
+    public void setUp() {
+        contactList = new CompactContactList(FakeContacts.create(contacts, 1));
+        searchIndex = new ContactSearchIndex(contactList, contactList.size());
+    }
+
+    @Benchmark
+    public int search() {
+        int matches = 0;
+        for (String query : QUERIES) {
+            BitSet result = searchIndex.search(query);
+            matches += result.cardinality();
+        }
+        return matches;
+    }
+
+    /**
+     * It builds the index from scratch.
+     */
+    @Benchmark
+    public ContactSearchIndex build() {
+        return new ContactSearchIndex(contactList, contactList.size());
+    }
+
+}
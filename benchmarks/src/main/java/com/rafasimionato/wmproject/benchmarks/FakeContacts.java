@@ -0,0 +1,54 @@
+package com.rafasimionato.wmproject.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.rafasimionato.wmproject.data.Contact;
+
+/**
+ * It creates contacts looking like the ones returned by the Google+ People
+ * API : 21-digit IDs, names made of common first and last names (some of them
+ * with accents), profile URLs made of the ID and picture URLs carrying a size
+ * parameter. The same seed always gives the same contacts.
+ */
+final class FakeContacts {
+
+    private static final String[] FIRST_NAMES = { "Ana", "Andr\u00e9", "Beatriz", "Bruno",
+            "Carla", "Cl\u00e1udio", "Daniel", "D\u00e9bora", "Eduardo", "Elisa", "F\u00e1bio",
+            "Fernanda", "Gabriel", "Helena", "Igor", "Joana", "Jo\u00e3o", "Jos\u00e9",
+            "J\u00falia", "Lucas", "Marcos", "Maria", "M\u00f4nica", "Paulo", "Rafael", "Renata",
+            "S\u00e9rgio", "Tatiana", "Vitor", "Z\u00e9" };
+
+    private static final String[] LAST_NAMES = { "Almeida", "Ara\u00fajo", "Barbosa",
+            "Cardoso", "Carvalho", "Costa", "Dias", "Ferreira", "Gomes", "Lima", "Martins", "Melo",
+            "Oliveira", "Pereira", "Ribeiro", "Rocha", "Santos", "Silva", "Simionato", "Souza" };
+
+    private FakeContacts() {
+    }
+
+    /**
+     * It returns the contact with the entry index, with a random name.
+     */
+    static Contact create(int index, Random random) {
+        String id = String.valueOf(100000000000000000L + index) + "123";
+        String name = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " "
+                + LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+        return new Contact(id, name, "https://plus.google.com/" + id,
+                "https://lh" + (index % 6) + ".googleusercontent.com/-" + id
+                        + "/AAAAAAAAAAI/AAAAAAAAAAA/photo.jpg?sz=50");
+    }
+
+    /**
+     * It returns count contacts with consecutive indexes.
+     */
+    static List<Contact> create(int count, long seed) {
+        Random random = new Random(seed);
+        List<Contact> contacts = new ArrayList<Contact>(count);
+        for (int i = 0; i < count; i++) {
+            contacts.add(create(i, random));
+        }
+        return contacts;
+    }
+
+}
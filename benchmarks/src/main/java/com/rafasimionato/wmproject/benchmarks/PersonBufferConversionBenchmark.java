@@ -0,0 +1,197 @@
+package com.rafasimionato.wmproject.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rafasimionato.wmproject.data.Contact;
+import com.rafasimionato.wmproject.data.ContactBatcher;
+
+/**
+ * Benchmarks for the conversion of a page of people into contacts, as done by
+ * FriendsList.PersonBufferConverter.
+ *
+ * The PersonBuffer of Google Play services can't be created outside a device,
+ * so a fake one stands in for it { @see FakePersonBuffer }. Like the real one,
+ * each get(i) creates a new person reference on the buffer rows, each field is
+ * read from a named column and each image is a new object.
+ *
+ * - convertReadingEachFieldAgain : the former conversion in onResult, which
+ * called get(i) again for each field read
+ * - convertReadingEachPersonOnce : the current one, which reads each person
+ * once and hands the contacts in batches { @see ContactBatcher }
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersonBufferConversionBenchmark {
+
+    private static final String[] COLUMNS = { "personId", "displayName", "url", "image" };
+
+    /**
+     * It stands in for the rows of a PersonBuffer : each field is read by
+     * column name, and a null value stands for a missing field.
+     */
+    static final class FakePersonBuffer {
+
+        private final Map<String, Integer> columnIndexes = new HashMap<String, Integer>();
+        private final String[][] rows;
+
+        FakePersonBuffer(List<Contact> contacts) {
+            for (int i = 0; i < COLUMNS.length; i++) {
+                columnIndexes.put(COLUMNS[i], i);
+            }
+            rows = new String[contacts.size()][];
+            for (int i = 0; i < rows.length; i++) {
+                Contact contact = contacts.get(i);
+                rows[i] = new String[] { contact.getId(), contact.getName(),
+                        contact.getProfileUrl(), contact.getPictureUrl() + "?sz=50" };
+            }
+        }
+
+        int getCount() {
+            return rows.length;
+        }
+
+        FakePerson get(int position) {
+            return new FakePerson(this, position);
+        }
+
+        String getString(String column, int row) {
+            return rows[row][columnIndexes.get(column)];
+        }
+
+        boolean hasNull(String column, int row) {
+            return getString(column, row) == null;
+        }
+    }
+
+    /**
+     * It stands in for the person reference returned by PersonBuffer.get.
+     */
+    static final class FakePerson {
+
+        private final FakePersonBuffer buffer;
+        private final int row;
+
+        FakePerson(FakePersonBuffer buffer, int row) {
+            this.buffer = buffer;
+            this.row = row;
+        }
+
+        boolean hasId() {
+            return !buffer.hasNull("personId", row);
+        }
+
+        String getId() {
+            return buffer.getString("personId", row);
+        }
+
+        boolean hasDisplayName() {
+            return !buffer.hasNull("displayName", row);
+        }
+
+        String getDisplayName() {
+            return buffer.getString("displayName", row);
+        }
+
+        boolean hasUrl() {
+            return !buffer.hasNull("url", row);
+        }
+
+        String getUrl() {
+            return buffer.getString("url", row);
+        }
+
+        boolean hasImage() {
+            return !buffer.hasNull("image", row);
+        }
+
+        FakeImage getImage() {
+            return new FakeImage(buffer.getString("image", row));
+        }
+    }
+
+    static final class FakeImage {
+
+        private final String url;
+
+        FakeImage(String url) {
+            this.url = url;
+        }
+
+        String getUrl() {
+            return url;
+        }
+    }
+
+    // People in the page converted, the most Plus.PeopleApi returns in one
+    // page being 100
+    @Param({ "100", "1000" })
+    public int people;
+
+    private FakePersonBuffer personBuffer;
+
+    @Setup
+    public void setUp() {
+        personBuffer = new FakePersonBuffer(FakeContacts.create(people, 1));
+    }
+
+    @Benchmark
+    public List<Contact> convertReadingEachFieldAgain() {
+        ArrayList<Contact> contacts = new ArrayList<Contact>();
+        int count = personBuffer.getCount();
+        for (int i = 0; i < count; i++) {
+            contacts.add(new Contact(personBuffer.get(i).hasId() ? personBuffer.get(i).getId()
+                    : null, personBuffer.get(i).hasDisplayName() ? personBuffer.get(i)
+                    .getDisplayName() : null, personBuffer.get(i).hasUrl() ? personBuffer
+                    .get(i).getUrl() : null, personBuffer.get(i).hasImage() ? personBuffer
+                    .get(i).getImage().getUrl() : null));
+        }
+        return contacts;
+    }
+
+    @Benchmark
+    public List<Contact[]> convertReadingEachPersonOnce() {
+        final List<Contact[]> batches = new ArrayList<Contact[]>();
+        ContactBatcher batcher = new ContactBatcher(new ContactBatcher.BatchListener() {
+
+            @Override
+            public void onBatch(Contact[] batch) {
+                batches.add(batch);
+            }
+        });
+        int count = personBuffer.getCount();
+        for (int i = 0; i < count; i++) {
+            batcher.add(toContact(personBuffer.get(i)));
+        }
+        batcher.flush();
+        return batches;
+    }
+
+    // Same as FriendsList.toContact
+    private static Contact toContact(FakePerson person) {
+        return new Contact(person.hasId() ? person.getId() : null,
+                person.hasDisplayName() ? person.getDisplayName() : null,
+                person.hasUrl() ? person.getUrl() : null,
+                person.hasImage() ? person.getImage().getUrl() : null);
+    }
+
+}
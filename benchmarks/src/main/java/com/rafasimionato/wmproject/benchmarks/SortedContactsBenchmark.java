@@ -0,0 +1,102 @@
+package com.rafasimionato.wmproject.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rafasimionato.wmproject.data.CompactContactList;
+import com.rafasimionato.wmproject.data.Contact;
+import com.rafasimionato.wmproject.data.ContactListDiff;
+import com.rafasimionato.wmproject.data.SortedContacts;
+
+/**
+ * Benchmarks for sorting the contacts by name { @see SortedContacts } :
+ *
+ * - sorting all contacts from scratch, as done when the first page arrives
+ * - merging a page of contacts appended to the list
+ * - merging a reload of the contacts where 1% of them were inserted, removed
+ * or renamed, including the diff from the previous contacts
+ * { @see ContactListDiff }
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SortedContactsBenchmark {
+
+    // Contacts in each page of people
+    private static final int PAGE_SIZE = 50;
+
+    @Param({ "1000", "10000", "50000" })
+    public int contacts;
+
+    private CompactContactList contactList;
+    private SortedContacts sortedContacts;
+
+    // The same list with a page appended, and the order before it
+    private CompactContactList grownList;
+    private SortedContacts sortedBeforePage;
+
+    // A reload of the contacts with a few changes
+    private CompactContactList reloadedList;
+
+    @Setup
+    public void setUp() {
+        List<Contact> all = FakeContacts.create(contacts + PAGE_SIZE, 1);
+
+        contactList = new CompactContactList(all.subList(0, contacts));
+        sortedContacts = SortedContacts.sort(contactList, contacts);
+
+        grownList = new CompactContactList(all.subList(0, contacts));
+        sortedBeforePage = SortedContacts.sort(grownList, contacts);
+        grownList.addAll(all.subList(contacts, contacts + PAGE_SIZE));
+
+        Random random = new Random(2);
+        int changes = Math.max(1, contacts / 100);
+        List<Contact> reloaded = new ArrayList<Contact>(all.subList(0, contacts));
+        for (int i = 0; i < changes; i++) {
+            reloaded.remove(random.nextInt(reloaded.size()));
+            int renamed = random.nextInt(reloaded.size());
+            Contact contact = reloaded.get(renamed);
+            reloaded.set(renamed, new Contact(contact.getId(), contact.getName() + " Jr",
+                    contact.getProfileUrl(), contact.getPictureUrl()));
+            reloaded.add(FakeContacts.create(contacts + PAGE_SIZE + i, random));
+        }
+        reloadedList = new CompactContactList(reloaded);
+    }
+
+    @Benchmark
+    public SortedContacts sortAll() {
+        return SortedContacts.sort(contactList, contacts);
+    }
+
+    @Benchmark
+    public SortedContacts mergeAppendedPage() {
+        ContactListDiff diff = ContactListDiff.compute(grownList, contacts, grownList,
+                grownList.size());
+        return sortedBeforePage.update(grownList, grownList.size(), diff);
+    }
+
+    @Benchmark
+    public SortedContacts mergeReload() {
+        ContactListDiff diff = ContactListDiff.compute(contactList, contacts, reloadedList,
+                reloadedList.size());
+        return sortedContacts.update(reloadedList, reloadedList.size(), diff);
+    }
+
+}
@@ -0,0 +1,40 @@
+package com.rafasimionato.wmproject.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * It draws key indexes following a Zipfian distribution, where the key with
+ * rank r is drawn with a probability proportional to 1 / r^exponent. It's how
+ * avatars are requested while scrolling back and forth over a long list : a
+ * few rows near the current position are bound again and again, while most
+ * rows are only seen once in a while.
+ */
+final class ZipfianKeys {
+
+    // Cumulative probability of each key
+    private final double[] cumulative;
+
+    ZipfianKeys(int keys, double exponent) {
+        cumulative = new double[keys];
+        double sum = 0;
+        for (int i = 0; i < keys; i++) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < keys; i++) {
+            cumulative[i] /= sum;
+        }
+    }
+
+    /**
+     * It returns the index of the next key, from 0 (the most popular one) to
+     * the number of keys minus 1.
+     */
+    int next(Random random) {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        index = index >= 0 ? index : -index - 1;
+        return Math.min(index, cumulative.length - 1);
+    }
+
+}
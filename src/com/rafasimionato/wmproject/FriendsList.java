@@ -1,15 +1,23 @@
 package com.rafasimionato.wmproject;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import android.app.Activity;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
+import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.Toast;
 
@@ -22,9 +30,22 @@ import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.plus.People;
 import com.google.android.gms.plus.People.LoadPeopleResult;
 import com.google.android.gms.plus.Plus;
+import com.google.android.gms.plus.model.people.Person;
 import com.google.android.gms.plus.model.people.PersonBuffer;
+import com.rafasimionato.wmproject.data.CompactContactList;
 import com.rafasimionato.wmproject.data.Contact;
+import com.rafasimionato.wmproject.data.ContactBatcher;
 import com.rafasimionato.wmproject.data.ContactAdapter;
+import com.rafasimionato.wmproject.data.ContactPrefetcher;
+import com.rafasimionato.wmproject.data.ContactStore;
+import com.rafasimionato.wmproject.image.BitmapCache;
+import com.rafasimionato.wmproject.image.BitmapHandlerDownloadTask;
+import com.rafasimionato.wmproject.image.BitmapHttpClient;
+import com.rafasimionato.wmproject.image.BitmapLoaderExecutor;
+import com.rafasimionato.wmproject.image.BitmapPool;
+import com.rafasimionato.wmproject.image.NetworkPolicy;
+import com.rafasimionato.wmproject.util.ListMetrics;
+import com.rafasimionato.wmproject.util.Tracer;
 
 /**
  * This class loads all contacts from the connected account into a list view
@@ -34,6 +55,10 @@ import com.rafasimionato.wmproject.data.ContactAdapter;
  * Clicking each line in the list view will raise an intent to open the
  * contact's profile in the Google+.
  * 
+ * Contacts loaded from the network are kept in the contact store
+ * { @see ContactStore }, so the list is filled from there as soon as this
+ * activity is created and then refreshed in the background.
+ * 
  * This class also implements part of the Google+ sign-in work flow as it needs
  * to query the contact list of the connected user.
  * 
@@ -47,6 +72,134 @@ public class FriendsList extends Activity implements ConnectionCallbacks,
     // Google client object used to interact with Google+ APIs
     private GoogleApiClient mGoogleApiClient = null;
 
+    // Adapter set once to the list view, where contacts are appended page by
+    // page as they are loaded
+    private ContactAdapter mContactAdapter = null;
+
+    // It prefetches the pictures of the contacts ahead of the scrolling
+    private ContactPrefetcher mContactPrefetcher = null;
+
+    // Number of pages of visible people received since the last connection
+    private int mPageCount = 0;
+
+    // It identifies the current load, so pages still being converted from a
+    // previous connection are ignored
+    private int mLoadGeneration = 0;
+
+    // All contacts received since the last connection
+    private CompactContactList mLoadedContacts = new CompactContactList();
+
+    // It tells if the adapter shows a complete list of contacts, read from
+    // the store or loaded from the network. In that case pages are not shown
+    // one by one, but only when all of them have been received
+    private boolean mShowingCompleteList = false;
+
+    // It reads the stored contacts off the UI thread and shows them, unless
+    // contacts were already received from the network
+    private class StoredContactsLoader extends AsyncTask<Void, Void, CompactContactList> {
+
+        private final ContactStore contactStore = ContactStore.getInstance(FriendsList.this);
+
+        @Override
+        protected CompactContactList doInBackground(Void... params) {
+            return contactStore.getContacts();
+        }
+
+        @Override
+        protected void onPostExecute(CompactContactList contacts) {
+            if (!mShowingCompleteList && mLoadedContacts.isEmpty() && !contacts.isEmpty()) {
+                Log.d(TAG, "Showing " + contacts.size() + " stored contacts");
+                mContactAdapter.setContacts(contacts);
+                mShowingCompleteList = true;
+            }
+        }
+    }
+
+    // It converts off the UI thread a page of visible people into contacts,
+    // reading each person only once, and hands them to the UI thread in
+    // batches { @see ContactBatcher }. The person buffer is closed as soon
+    // as it has been read. Pages are converted in the serial executor, so
+    // they are handed in the same order they were received. A null person
+    // buffer stands for a page that failed, which ends the load once the
+    // pages received before it are handed
+    private class PersonBufferConverter extends AsyncTask<Void, Contact[], Void> {
+
+        private final PersonBuffer personBuffer;
+        private final int loadGeneration;
+        private final boolean lastPage;
+
+        PersonBufferConverter(PersonBuffer personBuffer, int loadGeneration, boolean lastPage) {
+            this.personBuffer = personBuffer;
+            this.loadGeneration = loadGeneration;
+            this.lastPage = lastPage;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            if (personBuffer == null) {
+                return null;
+            }
+            ContactBatcher batcher = new ContactBatcher(new ContactBatcher.BatchListener() {
+
+                @Override
+                public void onBatch(Contact[] batch) {
+                    publishProgress(batch);
+                }
+            });
+            try {
+                int count = personBuffer.getCount();
+                for (int i = 0; i < count && !isCancelled(); i++) {
+                    batcher.add(toContact(personBuffer.get(i)));
+                }
+                batcher.flush();
+            } finally {
+                personBuffer.close();
+            }
+            return null;
+        }
+
+        @Override
+        protected void onProgressUpdate(Contact[]... batches) {
+            if (loadGeneration != mLoadGeneration) {
+                return;
+            }
+            for (Contact[] batch : batches) {
+                onContactsConverted(Arrays.asList(batch));
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            if (loadGeneration != mLoadGeneration || !lastPage) {
+                return;
+            }
+            if (personBuffer == null) {
+                onLoadFailed();
+            } else {
+                onAllPagesLoaded();
+            }
+        }
+    }
+
+    // It writes off the UI thread the changes between the stored contacts and
+    // the entry ones
+    private static class StoredContactsUpdater extends AsyncTask<Void, Void, Void> {
+
+        private final ContactStore contactStore;
+        private final List<Contact> contacts;
+
+        StoredContactsUpdater(ContactStore contactStore, List<Contact> contacts) {
+            this.contactStore = contactStore;
+            this.contacts = contacts;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            contactStore.update(contacts);
+            return null;
+        }
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -54,6 +207,61 @@ public class FriendsList extends Activity implements ConnectionCallbacks,
         mGoogleApiClient = new GoogleApiClient.Builder(this).addConnectionCallbacks(this)
                 .addOnConnectionFailedListener(this).addApi(Plus.API)
                 .addScope(Plus.SCOPE_PLUS_LOGIN).addScope(Plus.SCOPE_PLUS_PROFILE).build();
+
+        mContactAdapter = new ContactAdapter(this, new ArrayList<Contact>());
+        final ListView mListViewContacts = (ListView) findViewById(R.id.listView_contactsList);
+        mListViewContacts.setAdapter(mContactAdapter);
+        // Contacts are sorted in sections by name { @see ContactAdapter }
+        mListViewContacts.setFastScrollEnabled(true);
+        // Pictures are prefetched ahead of the scrolling
+        mContactPrefetcher = new ContactPrefetcher(this, mContactAdapter);
+        mListViewContacts.setOnScrollListener(mContactPrefetcher);
+
+        // Setting a listener to monitor each line in the list view. Clicking it
+        // will raise an intent to open the contact's profile in the Google+
+        mListViewContacts.setOnItemClickListener(new OnItemClickListener() {
+
+            @Override
+            public void onItemClick(AdapterView<?> a, View v, int position, long id) {
+                Contact contact = (Contact) mListViewContacts.getItemAtPosition(position);
+                String url = contact.getProfileUrl();
+
+                if (url != null) {
+                    Intent i = new Intent(Intent.ACTION_VIEW);
+                    i.setData(Uri.parse(url));
+                    startActivity(i);
+                } else {
+                    Toast.makeText(FriendsList.this, "No URL available for this contact.",
+                            Toast.LENGTH_LONG).show();
+                }
+
+            }
+
+        });
+
+        // Filtering the contacts by name as the user types. Please @see
+        // ContactAdapter.filter
+        final EditText mEditTextFilter = (EditText) findViewById(R.id.editText_filter);
+        mEditTextFilter.addTextChangedListener(new TextWatcher() {
+
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                mContactAdapter.filter(s.toString());
+            }
+
+        });
+
+        // Both the store tasks run in the serial executor, so the stored
+        // contacts are never read while they are being updated
+        new StoredContactsLoader().execute();
     }
 
     @Override
@@ -66,6 +274,18 @@ public class FriendsList extends Activity implements ConnectionCallbacks,
 
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        ListMetrics.startFrameMonitor();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        ListMetrics.stopFrameMonitor();
+    }
+
     @Override
     protected void onStop() {
 
@@ -78,6 +298,89 @@ public class FriendsList extends Activity implements ConnectionCallbacks,
             mGoogleApiClient.disconnect();
         }
 
+        // No avatars are loaded while the list is not visible
+        mContactPrefetcher.cancel();
+        BitmapHttpClient.closeIdleConnections();
+
+    }
+
+    /**
+     * The bitmap cache is shared by all activities, so it's shrunk here as
+     * soon as the system asks the application to release memory. For further
+     * information @see BitmapCache.trimMemory
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        BitmapCache.getInstance().trimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        BitmapCache.getInstance().onLowMemory();
+    }
+
+    /**
+     * It prints the list metrics { @see ListMetrics }, the counters of the
+     * bitmap loading and the traced events { @see Tracer } when the activity
+     * is dumped. The following arguments
+     * may be given to dumpsys after the activity name :
+     * 
+     * metrics-on / metrics-off : starts or stops collecting metrics
+     * trace-on / trace-off : starts or stops tracing events
+     * reset : clears the metrics collected so far
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (args != null) {
+            List<String> arguments = Arrays.asList(args);
+            if (arguments.contains("metrics-on") || arguments.contains("metrics-off")) {
+                ListMetrics.setEnabled(arguments.contains("metrics-on"));
+            }
+            if (arguments.contains("trace-on") || arguments.contains("trace-off")) {
+                Tracer.setTracing(arguments.contains("trace-on"));
+            }
+            if (arguments.contains("reset")) {
+                ListMetrics.reset();
+            }
+        }
+        ListMetrics.dump(prefix, writer);
+        dumpBitmapLoading(prefix, writer);
+        Tracer.dump(prefix, writer);
+    }
+
+    /**
+     * It prints how effective the bitmap caches and pool are, and how bitmaps
+     * are being downloaded.
+     */
+    private void dumpBitmapLoading(String prefix, PrintWriter writer) {
+
+        BitmapCache cache = BitmapCache.getInstance();
+        long lookups = cache.getHitCount() + cache.getMissCount();
+        writer.println(prefix + "BitmapLoading:");
+        writer.println(prefix + "  Cache : " + cache.getSize() + " of " + cache.getMaxSize()
+                + " bytes, " + cache.getHitCount() + " hits, " + cache.getMissCount()
+                + " misses (" + (lookups == 0 ? 0 : cache.getHitCount() * 100 / lookups)
+                + "% hits), " + cache.getEvictionCount() + " evictions");
+
+        BitmapPool pool = BitmapPool.getInstance();
+        writer.println(prefix + "  Pool : " + pool.getSize() + " bytes, " + pool.getReuseCount()
+                + " reuses, " + pool.getMissCount() + " misses");
+
+        writer.println(prefix + "  Downloads : avg "
+                + BitmapHandlerDownloadTask.getAverageDownloadMillis() + " ms, "
+                + BitmapHandlerDownloadTask.getBytesSavedByCancellation()
+                + " bytes saved by cancellation, "
+                + BitmapHandlerDownloadTask.getUnknownLengthAbortCount()
+                + " cancelled of unknown length");
+
+        NetworkPolicy networkPolicy = NetworkPolicy.getInstance(this);
+        writer.println(prefix + "  Network : " + (networkPolicy.isOffline() ? "offline"
+                : networkPolicy.isConstrained() ? "constrained" : "unconstrained") + ", "
+                + BitmapLoaderExecutor.getInstance(this).getNetworkThreads()
+                + " network threads");
     }
 
     /**
@@ -85,13 +388,30 @@ public class FriendsList extends Activity implements ConnectionCallbacks,
      * of visible people in the user's circles.
      * 
      * The result for this query will be available in the onResult callback
-     * method and there, all contacts will be loaded into an adapter to be set
-     * to the list view object { @see listView_contactsList }.
+     * method, one page at a time, and there the contacts of each page will be
+     * loaded into the adapter of the list view object
+     * { @see listView_contactsList }.
      */
     @Override
     public void onConnected(Bundle connectionHint) {
         Log.d(TAG, "onConnected called");
-        Plus.PeopleApi.loadVisible(mGoogleApiClient, null).setResultCallback(this);
+        mPageCount = 0;
+        mLoadGeneration++;
+        mLoadedContacts = new CompactContactList();
+        loadVisiblePeople(null);
+    }
+
+    /**
+     * It requests a page of visible people in the user's circles, as long as
+     * the client is still connected. The result is received by onResult.
+     * 
+     * @param pageToken
+     *            token of the page to be loaded, or null for the first one
+     */
+    private void loadVisiblePeople(String pageToken) {
+        if (mGoogleApiClient.isConnected()) {
+            Plus.PeopleApi.loadVisible(mGoogleApiClient, pageToken).setResultCallback(this);
+        }
     }
 
     @Override
@@ -105,71 +425,103 @@ public class FriendsList extends Activity implements ConnectionCallbacks,
     }
 
     /**
-     * It a callback method that receives the result of querying all visible
-     * people in the user's circles. It loads into an adapter all this data and
-     * set the list view object { @see listView_contactsList }.
+     * It a callback method that receives each page of the result of querying
+     * all visible people in the user's circles. The page is converted into
+     * contacts off the UI thread { @see PersonBufferConverter } while the next
+     * page, if there is any, is already requested.
+     * 
+     * When a page fails, its person buffer is closed and the load ends with
+     * the pages received so far { @see onLoadFailed }.
      */
     @Override
     public void onResult(LoadPeopleResult peopleData) {
 
-        Log.d(TAG, "onResult called - setting adapter");
-
-        Contact contact;
-        ArrayList<Contact> arrayListContacts = new ArrayList<Contact>();
-
-        if (peopleData.getStatus().getStatusCode() == CommonStatusCodes.SUCCESS) {
+        Log.d(TAG, "onResult called - page " + mPageCount);
 
+        if (peopleData.getStatus().getStatusCode() != CommonStatusCodes.SUCCESS) {
+            Log.e(TAG, "Error requesting visible circles : " + peopleData.getStatus());
             PersonBuffer personBuffer = peopleData.getPersonBuffer();
+            if (personBuffer != null) {
+                personBuffer.close();
+            }
+            new PersonBufferConverter(null, mLoadGeneration, true).execute();
+            return;
+        }
 
-            try {
+        if (mPageCount == 0) {
+            ListMetrics.markContactsReceived();
+        }
+        mPageCount++;
 
-                int count = personBuffer.getCount();
-                for (int i = 0; i < count; i++) {
+        String nextPageToken = peopleData.getNextPageToken();
+        new PersonBufferConverter(peopleData.getPersonBuffer(), mLoadGeneration,
+                nextPageToken == null).execute();
 
-                    contact = new Contact(personBuffer.get(i).hasId() ? personBuffer.get(i).getId()
-                            : null, personBuffer.get(i).hasDisplayName() ? personBuffer.get(i)
-                            .getDisplayName() : null, personBuffer.get(i).hasUrl() ? personBuffer
-                            .get(i).getUrl() : null, personBuffer.get(i).hasImage() ? personBuffer
-                            .get(i).getImage().getUrl() : null);
+        if (nextPageToken != null) {
+            Log.d(TAG, "Requesting next page of visible circles");
+            loadVisiblePeople(nextPageToken);
+        }
 
-                    arrayListContacts.add(contact);
+    }
 
-                }
+    /**
+     * It creates a contact from the entry person, reading each field only
+     * once.
+     */
+    private static Contact toContact(Person person) {
+        return new Contact(person.hasId() ? person.getId() : null,
+                person.hasDisplayName() ? person.getDisplayName() : null,
+                person.hasUrl() ? person.getUrl() : null,
+                person.hasImage() ? person.getImage().getUrl() : null);
+    }
 
-            } finally {
-                personBuffer.close();
+    /**
+     * It receives on the UI thread a batch of contacts converted from the
+     * current load. Unless a complete list is already shown, the first batch
+     * replaces the contacts shown since the last load, and the next ones are
+     * appended to it.
+     */
+    private void onContactsConverted(List<Contact> contacts) {
+        boolean firstBatch = mLoadedContacts.isEmpty();
+        mLoadedContacts.addAll(contacts);
+        if (!mShowingCompleteList) {
+            if (firstBatch) {
+                mContactAdapter.setContacts(contacts);
+            } else {
+                mContactAdapter.addContacts(contacts);
             }
-        } else {
-            Log.e(TAG, "Error requesting visible circles : " + peopleData.getStatus());
         }
+    }
 
-        // Setting the adapter already loaded with all contacts retrieved from
-        // the connected user account
-        final ListView mListViewContacts = (ListView) findViewById(R.id.listView_contactsList);
-        mListViewContacts.setAdapter(new ContactAdapter(this, arrayListContacts));
+    /**
+     * When all pages have been received, the complete list is shown (if it
+     * was not shown page by page) and the changes are written to the store.
+     */
+    private void onAllPagesLoaded() {
 
-        // Setting a listener to monitor each line in the list view. Clicking it
-        // will raise an intent to open the contact's profile in the Google+
-        mListViewContacts.setOnItemClickListener(new OnItemClickListener() {
+        Log.d(TAG, "All " + mLoadedContacts.size() + " visible people loaded");
 
-            @Override
-            public void onItemClick(AdapterView<?> a, View v, int position, long id) {
-                Contact contact = (Contact) mListViewContacts.getItemAtPosition(position);
-                String url = contact.getProfileUrl();
+        // The loaded contacts are not changed anymore, so the same compact
+        // list is shared by the adapter and the store update
+        mLoadedContacts.trimToSize();
+        if (mShowingCompleteList) {
+            mContactAdapter.setContacts(mLoadedContacts);
+        }
+        mShowingCompleteList = true;
 
-                if (url != null) {
-                    Intent i = new Intent(Intent.ACTION_VIEW);
-                    i.setData(Uri.parse(url));
-                    startActivity(i);
-                } else {
-                    Toast.makeText(FriendsList.this, "No URL available for this contact.",
-                            Toast.LENGTH_LONG).show();
-                }
+        new StoredContactsUpdater(ContactStore.getInstance(this), mLoadedContacts).execute();
+    }
 
-            }
+    /**
+     * When a page fails, the contacts of the pages received before it stay
+     * shown, or the complete list shown before, if there is one. As the
+     * loaded contacts are not complete, they are not written to the store.
+     */
+    private void onLoadFailed() {
 
-        });
+        Log.d(TAG, "Load failed after " + mLoadedContacts.size() + " visible people");
 
+        Toast.makeText(this, "Could not load all contacts.", Toast.LENGTH_LONG).show();
     }
 
-}
\ No newline at end of file
+}
@@ -1,9 +1,11 @@
 package com.rafasimionato.wmproject;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
 import android.content.IntentSender.SendIntentException;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -22,7 +24,12 @@ import com.google.android.gms.common.api.Status;
 import com.google.android.gms.plus.Plus;
 import com.google.android.gms.plus.PlusShare;
 import com.google.android.gms.plus.model.people.Person;
+import com.rafasimionato.wmproject.data.ContactStore;
+import com.rafasimionato.wmproject.image.AvatarSize;
+import com.rafasimionato.wmproject.image.BitmapCache;
+import com.rafasimionato.wmproject.image.BitmapDiskCache;
 import com.rafasimionato.wmproject.image.BitmapHandler;
+import com.rafasimionato.wmproject.image.BitmapHttpClient;
 
 /**
  * This class implements the Google+ sign-in work flow using the Google+
@@ -41,6 +48,9 @@ import com.rafasimionato.wmproject.image.BitmapHandler;
  * layout. After getting connected user may click hardware back key and return
  * to this activity to check some profile information stored during login.
  * 
+ * The contacts and the pictures kept on disk belong to the connected account,
+ * so they are deleted when the user signs out or revokes access.
+ * 
  * @link https://developer.android.com/google/play-services/index.html
  * @link https://developers.google.com/+/mobile/android/getting-started
  * @link https://developers.google.com/+/mobile/android/sign-in
@@ -114,6 +124,28 @@ public class LoginActivity extends Activity implements View.OnClickListener, Con
      */
     private final BitmapHandler mBitmapHandler = new BitmapHandler();;
 
+    /**
+     * It deletes off the UI thread the contacts and pictures kept on disk for
+     * the account signing out. It runs in the serial executor, as the contact
+     * store tasks of FriendsList, so a store update still pending is not
+     * written after the store is cleared.
+     */
+    private static class AccountDataCleaner extends AsyncTask<Void, Void, Void> {
+
+        private final Context context;
+
+        AccountDataCleaner(Context context) {
+            this.context = context.getApplicationContext();
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            ContactStore.getInstance(context).clear();
+            BitmapDiskCache.getInstance(context).clear();
+            return null;
+        }
+    }
+
     private void resetConnectionObject() {
         if (mGoogleApiClient == null) {
             mGoogleApiClient = new GoogleApiClient.Builder(this).addConnectionCallbacks(this)
@@ -198,6 +230,40 @@ public class LoginActivity extends Activity implements View.OnClickListener, Con
 
     }
 
+    /**
+     * The http client shared by the download tasks is kept alive while the
+     * application is running, so it's only shut down when leaving its root
+     * activity.
+     */
+    @Override
+    protected void onDestroy() {
+
+        super.onDestroy();
+
+        Log.d(TAG, "onDestroy called");
+
+        if (isFinishing()) {
+            BitmapHttpClient.shutdown();
+        }
+
+    }
+
+    /**
+     * It shrinks the bitmap cache used by the profile image view whenever the
+     * system runs low on memory.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        BitmapCache.getInstance().trimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        BitmapCache.getInstance().onLowMemory();
+    }
+
     @Override
     public void onClick(View view) {
 
@@ -224,6 +290,7 @@ public class LoginActivity extends Activity implements View.OnClickListener, Con
                     Plus.AccountApi.clearDefaultAccount(mGoogleApiClient);
                     mGoogleApiClient.disconnect();
                 }
+                new AccountDataCleaner(this).execute();
 
                 setProfileElementsState(true, false, false, getApplicationContext().getResources()
                         .getString(R.string.no_user_text), View.GONE, View.GONE);
@@ -248,6 +315,7 @@ public class LoginActivity extends Activity implements View.OnClickListener, Con
                     if (mGoogleApiClient.isConnected()) {
                         mGoogleApiClient.disconnect();
                     }
+                    new AccountDataCleaner(this).execute();
 
                     setProfileElementsState(true, false, false, getApplicationContext()
                             .getResources().getString(R.string.no_user_text), View.GONE, View.GONE);
@@ -378,9 +446,7 @@ public class LoginActivity extends Activity implements View.OnClickListener, Con
 
         setProfileElementsState(false, true, true, personName, View.VISIBLE, View.VISIBLE);
 
-        int lastIndexForRedimensioning = personImage.getUrl().lastIndexOf("?sz=");
-        mBitmapHandler.setBitmap(lastIndexForRedimensioning < 0 ? personImage.getUrl()
-                : personImage.getUrl().substring(0, lastIndexForRedimensioning), profileImageView);
+        mBitmapHandler.setBitmap(AvatarSize.stripSize(personImage.getUrl()), profileImageView);
 
         if (mShowFriendsList) {
             // Every time application is launched and an user is already
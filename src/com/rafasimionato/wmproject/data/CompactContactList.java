@@ -0,0 +1,485 @@
+package com.rafasimionato.wmproject.data;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.RandomAccess;
+
+/**
+ * This is a memory-compact list of contacts, used to keep very large circles
+ * without holding four String objects (and their char arrays) for each
+ * contact.
+ * 
+ * Contacts are stored by column instead of by object. IDs and names are packed
+ * into shared char arrays, referred by offset and length tables. URLs are split
+ * into a prefix (scheme and host), stored only once for all contacts, and a
+ * suffix packed like the names. Most profile URLs just append the contact ID
+ * to the Google+ host, so in that case the suffix is not stored at all.
+ * 
+ * Contacts can only be appended. The Contact objects returned by get are
+ * created on demand, so row views shall rather read only the fields they
+ * bind through getId, getName, getProfileUrl and getPictureUrl.
+ * 
+ * Each contact also gets a stable ID, a 64-bit hash of its contact ID (or of
+ * its other data for the rare contacts without one), kept in a column of its
+ * own. It identifies the same contact among different lists without creating
+ * any object. Please @see getStableId.
+ * 
+ * Contacts shall be appended by a single thread, but any thread may read the
+ * list while it grows. Appending writes only past the contacts already
+ * published, and columns that are full are copied into larger arrays, so the
+ * arrays seen by readers never change. Once the contacts are written, an
+ * immutable snapshot of the column arrays is published through a single
+ * volatile reference { @see Snapshot }, and every read goes through the last
+ * snapshot published.
+ */
+public class CompactContactList extends AbstractList<Contact> implements RandomAccess {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    // Packed strings as seen by readers. The length of a null string is
+    // stored as -1
+    private static final class StringView {
+
+        final char[] chars;
+        final int[] offsets;
+        final int[] lengths;
+
+        StringView(char[] chars, int[] offsets, int[] lengths) {
+            this.chars = chars;
+            this.offsets = offsets;
+            this.lengths = lengths;
+        }
+
+        String get(int index) {
+            int length = lengths[index];
+            return length < 0 ? null : new String(chars, offsets[index], length);
+        }
+
+        boolean contentEquals(int index, StringView other, int otherIndex) {
+            int length = lengths[index];
+            if (length != other.lengths[otherIndex]) {
+                return false;
+            }
+            int offset = offsets[index];
+            int otherOffset = other.offsets[otherIndex];
+            for (int i = 0; i < length; i++) {
+                if (chars[offset + i] != other.chars[otherOffset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // URLs as seen by readers, split into a prefix and a packed suffix. A null
+    // URL has the prefix index NULL_PREFIX
+    private static final class UrlView {
+
+        static final int NULL_PREFIX = -1;
+
+        final String[] prefixes;
+        final int[] prefixIds;
+        final StringView suffixes;
+
+        UrlView(String[] prefixes, int[] prefixIds, StringView suffixes) {
+            this.prefixes = prefixes;
+            this.prefixIds = prefixIds;
+            this.suffixes = suffixes;
+        }
+
+        String get(int index, StringView ids) {
+            int prefixId = prefixIds[index];
+            if (prefixId == NULL_PREFIX) {
+                return null;
+            }
+            String suffix = suffixes.get(index);
+            return prefixes[prefixId].concat(suffix == null ? ids.get(index) : suffix);
+        }
+
+        /**
+         * The URLs of two contacts with the same ID are equal when they have
+         * the same prefix and the same suffix, as the suffix is only omitted
+         * when it's the contact ID.
+         */
+        boolean contentEquals(int index, UrlView other, int otherIndex) {
+            int prefixId = prefixIds[index];
+            int otherPrefixId = other.prefixIds[otherIndex];
+            if (prefixId == NULL_PREFIX || otherPrefixId == NULL_PREFIX) {
+                return prefixId == otherPrefixId;
+            }
+            return prefixes[prefixId].equals(other.prefixes[otherPrefixId])
+                    && suffixes.contentEquals(index, other.suffixes, otherIndex);
+        }
+    }
+
+    // Column arrays of the first size contacts, published once they are all
+    // written. The entries below size are never written again
+    private static final class Snapshot {
+
+        final int size;
+        final StringView ids;
+        final StringView names;
+        final UrlView profileUrls;
+        final UrlView pictureUrls;
+        final long[] stableIds;
+
+        Snapshot(int size, StringView ids, StringView names, UrlView profileUrls,
+                UrlView pictureUrls, long[] stableIds) {
+            this.size = size;
+            this.ids = ids;
+            this.names = names;
+            this.profileUrls = profileUrls;
+            this.pictureUrls = pictureUrls;
+            this.stableIds = stableIds;
+        }
+
+        void checkIndex(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+        }
+    }
+
+    // Strings packed into a shared char array, only accessed by the appending
+    // thread. The view is created again whenever any array is replaced
+    private static final class StringColumn {
+
+        char[] chars = new char[DEFAULT_CAPACITY * 16];
+        int charCount = 0;
+        int[] offsets;
+        int[] lengths;
+        StringView view;
+
+        StringColumn(int capacity) {
+            offsets = new int[capacity];
+            lengths = new int[capacity];
+        }
+
+        void set(int index, String value) {
+            if (index == offsets.length) {
+                int newCapacity = offsets.length * 2;
+                offsets = Arrays.copyOf(offsets, newCapacity);
+                lengths = Arrays.copyOf(lengths, newCapacity);
+            }
+            if (value == null) {
+                offsets[index] = charCount;
+                lengths[index] = -1;
+                return;
+            }
+            int length = value.length();
+            if (charCount + length > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(chars.length * 2, charCount + length));
+            }
+            value.getChars(0, length, chars, charCount);
+            offsets[index] = charCount;
+            lengths[index] = length;
+            charCount += length;
+        }
+
+        void trimToSize(int size) {
+            chars = Arrays.copyOf(chars, charCount);
+            offsets = Arrays.copyOf(offsets, size);
+            lengths = Arrays.copyOf(lengths, size);
+        }
+
+        StringView view() {
+            if (view == null || view.chars != chars || view.offsets != offsets
+                    || view.lengths != lengths) {
+                view = new StringView(chars, offsets, lengths);
+            }
+            return view;
+        }
+    }
+
+    // Prefixes shared by all URL columns of a list, only accessed by the
+    // appending thread
+    private static final class PrefixTable {
+
+        String[] prefixes = new String[4];
+        int count = 0;
+        final HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+
+        int indexOf(String prefix) {
+            Integer index = indexes.get(prefix);
+            if (index == null) {
+                if (count == prefixes.length) {
+                    prefixes = Arrays.copyOf(prefixes, count * 2);
+                }
+                index = count;
+                prefixes[count++] = prefix;
+                indexes.put(prefix, index);
+            }
+            return index;
+        }
+    }
+
+    // URLs split into an interned prefix and a packed suffix, only accessed by
+    // the appending thread
+    private static final class UrlColumn {
+
+        final PrefixTable prefixTable;
+        int[] prefixIds;
+        final StringColumn suffixes;
+        UrlView view;
+
+        UrlColumn(int capacity, PrefixTable prefixTable) {
+            this.prefixTable = prefixTable;
+            prefixIds = new int[capacity];
+            suffixes = new StringColumn(capacity);
+        }
+
+        void set(int index, String url, String id) {
+            if (index == prefixIds.length) {
+                prefixIds = Arrays.copyOf(prefixIds, prefixIds.length * 2);
+            }
+            if (url == null) {
+                prefixIds[index] = UrlView.NULL_PREFIX;
+                suffixes.set(index, null);
+                return;
+            }
+            int prefixLength = getPrefixLength(url);
+            prefixIds[index] = prefixTable.indexOf(url.substring(0, prefixLength));
+            // The suffix is not stored when it's the contact ID, which is
+            // flagged by a null suffix
+            if (id != null && url.length() - prefixLength == id.length()
+                    && url.startsWith(id, prefixLength)) {
+                suffixes.set(index, null);
+            } else {
+                suffixes.set(index, url.substring(prefixLength));
+            }
+        }
+
+        void trimToSize(int size) {
+            prefixIds = Arrays.copyOf(prefixIds, size);
+            suffixes.trimToSize(size);
+        }
+
+        UrlView view() {
+            StringView suffixesView = suffixes.view();
+            if (view == null || view.prefixes != prefixTable.prefixes
+                    || view.prefixIds != prefixIds || view.suffixes != suffixesView) {
+                view = new UrlView(prefixTable.prefixes, prefixIds, suffixesView);
+            }
+            return view;
+        }
+
+        /**
+         * The prefix is the scheme and the host of the URL, including the
+         * slash following the host.
+         */
+        private static int getPrefixLength(String url) {
+            int schemeEnd = url.indexOf("://");
+            int hostEnd = url.indexOf('/', schemeEnd < 0 ? 0 : schemeEnd + 3);
+            return hostEnd < 0 ? 0 : hostEnd + 1;
+        }
+    }
+
+    private final StringColumn ids;
+    private final StringColumn names;
+    private final UrlColumn profileUrls;
+    private final UrlColumn pictureUrls;
+    private long[] stableIds;
+
+    // Number of contacts appended, only accessed by the appending thread
+    private int appendedCount = 0;
+
+    // Last snapshot published, read by all threads
+    private volatile Snapshot snapshot;
+
+    public CompactContactList() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity
+     *            number of contacts the list is initially sized for
+     */
+    public CompactContactList(int capacity) {
+        capacity = Math.max(capacity, 1);
+        PrefixTable prefixTable = new PrefixTable();
+        ids = new StringColumn(capacity);
+        names = new StringColumn(capacity);
+        profileUrls = new UrlColumn(capacity, prefixTable);
+        pictureUrls = new UrlColumn(capacity, prefixTable);
+        stableIds = new long[capacity];
+        publish();
+    }
+
+    /**
+     * It creates a compact list with all the entry contacts.
+     */
+    public CompactContactList(Collection<Contact> contacts) {
+        this(contacts.size());
+        addAll(contacts);
+    }
+
+    @Override
+    public boolean add(Contact contact) {
+        append(contact);
+        publish();
+        return true;
+    }
+
+    /**
+     * It appends all the entry contacts, publishing them together once they
+     * are all written.
+     */
+    @Override
+    public boolean addAll(Collection<? extends Contact> contacts) {
+        for (Contact contact : contacts) {
+            append(contact);
+        }
+        publish();
+        return !contacts.isEmpty();
+    }
+
+    private void append(Contact contact) {
+        int index = appendedCount;
+        String id = contact.getId();
+        String name = contact.getName();
+        String profileUrl = contact.getProfileUrl();
+        ids.set(index, id);
+        names.set(index, name);
+        profileUrls.set(index, profileUrl, id);
+        pictureUrls.set(index, contact.getPictureUrl(), id);
+        if (index == stableIds.length) {
+            stableIds = Arrays.copyOf(stableIds, stableIds.length * 2);
+        }
+        stableIds[index] = computeStableId(id, name, profileUrl);
+        appendedCount++;
+        modCount++;
+    }
+
+    /**
+     * It publishes the contacts appended so far to all threads.
+     */
+    private void publish() {
+        snapshot = new Snapshot(appendedCount, ids.view(), names.view(), profileUrls.view(),
+                pictureUrls.view(), stableIds);
+    }
+
+    /**
+     * It releases the memory allocated in advance for contacts not appended
+     * yet. It's worth calling once the list is complete.
+     */
+    public void trimToSize() {
+        int capacity = Math.max(appendedCount, 1);
+        ids.trimToSize(capacity);
+        names.trimToSize(capacity);
+        profileUrls.trimToSize(capacity);
+        pictureUrls.trimToSize(capacity);
+        stableIds = Arrays.copyOf(stableIds, capacity);
+        publish();
+    }
+
+    /**
+     * It creates a Contact object for the contact in the entry position.
+     */
+    @Override
+    public Contact get(int index) {
+        Snapshot s = snapshot;
+        s.checkIndex(index);
+        return new Contact(s.ids.get(index), s.names.get(index),
+                s.profileUrls.get(index, s.ids), s.pictureUrls.get(index, s.ids));
+    }
+
+    @Override
+    public int size() {
+        return snapshot.size;
+    }
+
+    /**
+     * It returns the Google+ ID for the contact in the entry position.
+     */
+    public String getId(int index) {
+        Snapshot s = snapshot;
+        s.checkIndex(index);
+        return s.ids.get(index);
+    }
+
+    /**
+     * It returns the display name for the contact in the entry position.
+     */
+    public String getName(int index) {
+        Snapshot s = snapshot;
+        s.checkIndex(index);
+        return s.names.get(index);
+    }
+
+    /**
+     * It returns the Google+ profile URL for the contact in the entry
+     * position.
+     */
+    public String getProfileUrl(int index) {
+        Snapshot s = snapshot;
+        s.checkIndex(index);
+        return s.profileUrls.get(index, s.ids);
+    }
+
+    /**
+     * It returns the Google+ profile picture URL for the contact in the entry
+     * position.
+     */
+    public String getPictureUrl(int index) {
+        Snapshot s = snapshot;
+        s.checkIndex(index);
+        return s.pictureUrls.get(index, s.ids);
+    }
+
+    /**
+     * It returns the stable ID for the contact in the entry position. The same
+     * contact gets the same stable ID in any list.
+     */
+    public long getStableId(int index) {
+        Snapshot s = snapshot;
+        s.checkIndex(index);
+        return s.stableIds[index];
+    }
+
+    /**
+     * It returns true if the contact in the entry position has the same data
+     * as the contact in the other position of the other list, comparing the
+     * packed data without creating any object.
+     */
+    public boolean contentEquals(int index, CompactContactList other, int otherIndex) {
+        Snapshot s = snapshot;
+        Snapshot o = other.snapshot;
+        s.checkIndex(index);
+        o.checkIndex(otherIndex);
+        return s.ids.contentEquals(index, o.ids, otherIndex)
+                && s.names.contentEquals(index, o.names, otherIndex)
+                && s.profileUrls.contentEquals(index, o.profileUrls, otherIndex)
+                && s.pictureUrls.contentEquals(index, o.pictureUrls, otherIndex);
+    }
+
+    // Offset basis and prime of the 64-bit FNV-1a hash
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * The stable ID is the hash of the contact ID or, for the rare contacts
+     * without one, of its name and profile URL.
+     */
+    private static long computeStableId(String id, String name, String profileUrl) {
+        if (id != null) {
+            return hash(FNV_OFFSET_BASIS, id);
+        }
+        long hash = hash(FNV_OFFSET_BASIS ^ 1, name);
+        return hash(hash * FNV_PRIME, profileUrl);
+    }
+
+    private static long hash(long hash, String value) {
+        if (value == null) {
+            return hash * FNV_PRIME;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+}
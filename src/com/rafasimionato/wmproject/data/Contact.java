@@ -1,6 +1,6 @@
 package com.rafasimionato.wmproject.data;
 
-import android.util.Log;
+import com.rafasimionato.wmproject.image.AvatarSize;
 
 /**
  * This is simple class to keep each contact information in the same data
@@ -10,8 +10,6 @@ import android.util.Log;
  */
 public class Contact {
 
-    private static final String TAG = "Contact";
-
     private final String _ID;
     private final String name;
     private final String profileUrl;
@@ -22,15 +20,15 @@ public class Contact {
         this._ID = _ID;
         this.name = name;
         this.profileUrl = profileUrl;
+        this.pictureUrl = AvatarSize.stripSize(pictureUrl);
 
-        if (pictureUrl != null) {
-            int lastIndexForRedimensioning = pictureUrl.lastIndexOf("?sz=");
-            this.pictureUrl = lastIndexForRedimensioning < 0 ? pictureUrl : pictureUrl.substring(0,
-                    lastIndexForRedimensioning);
-        } else {
-            this.pictureUrl = null;
-        }
+    }
 
+    /**
+     * It returns the Google+ ID for the contact.
+     */
+    public String getId() {
+        return _ID;
     }
 
     /**
@@ -54,17 +52,46 @@ public class Contact {
         return profileUrl;
     }
 
+    /**
+     * Two contacts are equal when all their information is the same. It's
+     * used to find which stored contacts have changed since the last load.
+     */
     @Override
-    public String toString() {
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Contact)) {
+            return false;
+        }
+        Contact other = (Contact) o;
+        return equals(_ID, other._ID) && equals(name, other.name)
+                && equals(profileUrl, other.profileUrl) && equals(pictureUrl, other.pictureUrl);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 17;
+        result = 31 * result + (_ID == null ? 0 : _ID.hashCode());
+        result = 31 * result + (name == null ? 0 : name.hashCode());
+        result = 31 * result + (profileUrl == null ? 0 : profileUrl.hashCode());
+        result = 31 * result + (pictureUrl == null ? 0 : pictureUrl.hashCode());
+        return result;
+    }
 
-        StringBuffer sb = new StringBuffer();
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public String toString() {
 
-        sb.append("ID : " + _ID);
-        sb.append("\nName : " + name);
-        sb.append("\nprofileUrl : " + profileUrl);
-        sb.append("\npictureUrl : " + pictureUrl);
+        StringBuilder sb = new StringBuilder();
 
-        Log.d(TAG, sb.toString());
+        sb.append("ID : ").append(_ID);
+        sb.append("\nName : ").append(name);
+        sb.append("\nprofileUrl : ").append(profileUrl);
+        sb.append("\npictureUrl : ").append(pictureUrl);
 
         return sb.toString();
     }
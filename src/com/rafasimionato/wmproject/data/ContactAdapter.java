@@ -1,30 +1,186 @@
 package com.rafasimionato.wmproject.data;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
 
 import android.content.Context;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseAdapter;
+import android.widget.Filter;
+import android.widget.Filterable;
+import android.widget.SectionIndexer;
 
 import com.rafasimionato.wmproject.R;
+import com.rafasimionato.wmproject.util.ListMetrics;
+import com.rafasimionato.wmproject.util.Tracer;
 
 /**
  * This is a simple base adapter implementation class used to load data into the
  * list view object { @see listView_contactsList } defined by
  * activity_friends_list layout.
  * 
+ * Contacts are shown sorted by name { @see SortedContacts }, grouped in
+ * sections by their first letter, so the list view can use fast scroll
+ * through the SectionIndexer interface. Contacts may be appended while they
+ * are still being loaded, page by page. Sorting runs on the filter thread, so
+ * the list view is only notified when the new contacts are already sorted.
+ * As the filter only runs the last request, pages arriving quickly one after
+ * the other are shown together.
+ * 
+ * Each contact has a stable row ID based on its contact ID, kept by the
+ * compact list, so the list view keeps its scroll position and the rows bound
+ * to unchanged contacts when the contacts are updated. The filter thread
+ * compares the updated contacts with the ones sorted last time
+ * { @see ContactListDiff }, and updating the adapter with the same contacts
+ * it already has does not notify the list view at all. Please @see
+ * setContacts.
+ * 
+ * Contacts are kept in a compact list { @see CompactContactList }, and each
+ * row reads from it only the fields it binds.
+ * 
+ * The contacts can be filtered by name { @see filter }. Filtering also
+ * runs on the filter thread, using a search index { @see ContactSearchIndex }
+ * that is only rebuilt when the contacts change, so each new query does not
+ * scan all contacts again. Only the result of the last query is shown.
+ * 
  * @author Rafael Simionato
  */
-public class ContactAdapter extends BaseAdapter {
+public class ContactAdapter extends BaseAdapter implements Filterable, SectionIndexer {
 
     private static final String TAG = "ContactAdapter";
 
-    // Array list of Contact that hold all the references read from each contact
-    // after sign-in the Google+ user's account.
-    private ArrayList<Contact> arrayListContacts;
+    // Compact list of Contact that hold all the references read from each
+    // contact after sign-in the Google+ user's account. It's also read by the
+    // filter thread
+    private volatile CompactContactList contactList;
+
+    // Contacts being shown, sorted and filtered. They are only replaced on
+    // the UI thread, right before the list view is notified
+    private ShownContacts shownContacts = ShownContacts.EMPTY;
+
+    // Last filter query requested, set on the UI thread when filtering is
+    // requested, so contacts changing meanwhile are filtered by it
+    private CharSequence filterQuery = null;
+
+    // Sorted order and search index of the contacts, only accessed by the
+    // filter thread and updated when the contacts change
+    private final ContactSorter contactSorter = new ContactSorter();
+    private ContactSearchIndex searchIndex = null;
+
+    // Last result of the filter and the query it was computed for, only
+    // accessed by the filter thread
+    private ShownContacts lastResult = null;
+    private CharSequence lastQuery = null;
+
+    private ContactFilter contactFilter = null;
+
+    // Contacts being shown, as positions in the list they were taken from, and
+    // the sections they are grouped in
+    private static final class ShownContacts {
+
+        static final ShownContacts EMPTY = new ShownContacts(new CompactContactList(1),
+                new int[0], new String[0], new int[0]);
+
+        final CompactContactList contactList;
+        final int[] positions;
+        final String[] sections;
+        final int[] sectionStarts;
+
+        ShownContacts(CompactContactList contactList, int[] positions, String[] sections,
+                int[] sectionStarts) {
+            this.contactList = contactList;
+            this.positions = positions;
+            this.sections = sections;
+            this.sectionStarts = sectionStarts;
+        }
+
+        /**
+         * It groups the entry sorted positions in sections, starting a new
+         * section every time the section of the contact changes.
+         */
+        static ShownContacts create(SortedContacts sortedContacts, int[] positions) {
+            ArrayList<String> sections = new ArrayList<String>();
+            int[] sectionStarts = new int[positions.length];
+            char currentSection = 0;
+            for (int i = 0; i < positions.length; i++) {
+                char section = sortedContacts.getSection(positions[i]);
+                if (sections.isEmpty() || section != currentSection) {
+                    sectionStarts[sections.size()] = i;
+                    sections.add(String.valueOf(section));
+                    currentSection = section;
+                }
+            }
+            return new ShownContacts(sortedContacts.getContactList(), positions,
+                    sections.toArray(new String[sections.size()]), Arrays.copyOf(sectionStarts,
+                            sections.size()));
+        }
+    }
+
+    // It sorts and filters the contacts off the UI thread
+    private final class ContactFilter extends Filter {
+
+        @Override
+        protected FilterResults performFiltering(CharSequence constraint) {
+
+            long start = SystemClock.uptimeMillis();
+
+            CompactContactList list = contactList;
+            int size = list.size();
+
+            // When the contacts did not change and neither did the query, the
+            // last result is published again, which does not notify the list
+            // view
+            ShownContacts result = null;
+            ContactListDiff diff = contactSorter.sort(list, size);
+            SortedContacts sortedContacts = contactSorter.getSortedContacts();
+            if (diff != null && !diff.isEmpty()) {
+                Log.d(TAG, "Contacts updated : " + diff);
+            } else if (diff != null && TextUtils.equals(constraint, lastQuery)) {
+                result = lastResult;
+            }
+
+            if (result == null) {
+                CompactContactList sortedList = sortedContacts.getContactList();
+                int sortedSize = sortedContacts.size();
+                BitSet matches = null;
+                if (constraint != null && constraint.length() > 0) {
+                    if (searchIndex == null || !searchIndex.covers(sortedList, sortedSize)) {
+                        searchIndex = new ContactSearchIndex(sortedList, sortedSize);
+                    }
+                    matches = searchIndex.search(constraint);
+                }
+                result = ShownContacts.create(sortedContacts, sortedContacts.getOrder(matches));
+                lastResult = result;
+                lastQuery = constraint;
+            }
+            Log.d(TAG, result.positions.length + " of " + size + " contacts sorted and filtered in "
+                    + (SystemClock.uptimeMillis() - start) + " ms");
+
+            FilterResults results = new FilterResults();
+            results.values = result;
+            results.count = result.positions.length;
+            return results;
+        }
+
+        @Override
+        protected void publishResults(CharSequence constraint, FilterResults results) {
+            ShownContacts result = (ShownContacts) results.values;
+            if (result == shownContacts) {
+                Log.d(TAG, "Contacts unchanged, list view not notified");
+                return;
+            }
+            shownContacts = result;
+            notifyDataSetChanged();
+        }
+    }
 
     // Layout inflater reference used to inflate a layout row in the contacts
     // list view object. Please @see R.layout.row
@@ -40,50 +196,161 @@ public class ContactAdapter extends BaseAdapter {
      * @param contacts
      *            initial data to be loaded in this adapter
      */
-    public ContactAdapter(Context context, ArrayList<Contact> contacts) {
+    public ContactAdapter(Context context, List<Contact> contacts) {
         layoutInflater = LayoutInflater.from(context);
-        arrayListContacts = contacts;
+        contactList = toCompactList(contacts);
+        refresh();
+    }
+
+    private static CompactContactList toCompactList(List<Contact> contacts) {
+        if (contacts instanceof CompactContactList) {
+            return (CompactContactList) contacts;
+        }
+        return new CompactContactList(contacts);
     }
 
     /**
-     * It returns the number of Contact objects in the contacts array list.
+     * It replaces all contacts of this adapter by the entry ones. The filter
+     * thread compares them with the contacts sorted last time by stable ID
+     * and, only if any contact was inserted, removed or changed, the contacts
+     * are sorted again and the list view is notified. Rows bound to unchanged
+     * contacts keep their stable IDs, so their pictures being downloaded are
+     * not requested again. It shall be called from the UI thread.
+     * 
+     * The adapter keeps the entry list if it's a compact one, so it shall not
+     * be changed afterwards by the caller.
+     */
+    public void setContacts(List<Contact> contacts) {
+        contactList = toCompactList(contacts);
+        refresh();
+    }
+
+    /**
+     * It appends the entry contacts to this adapter. They are shown as soon as
+     * they are sorted, along with any other contacts appended in the
+     * meantime. It shall be called from the UI thread.
+     */
+    public void addContacts(Collection<Contact> contacts) {
+        if (contacts.isEmpty()) {
+            return;
+        }
+        contactList.addAll(contacts);
+        refresh();
+    }
+
+    /**
+     * It returns the filter that shows only the contacts whose name has a word
+     * starting with each word of the query, ignoring case and accents. An
+     * empty query shows all contacts. Queries shall rather be given to the
+     * filter method, which keeps them for the contacts changed later.
+     */
+    @Override
+    public Filter getFilter() {
+        if (contactFilter == null) {
+            contactFilter = new ContactFilter();
+        }
+        return contactFilter;
+    }
+
+    /**
+     * It shows only the contacts matching the entry query, as the filter does
+     * { @see getFilter }. The query is kept as the current one at once, so
+     * contacts changing before its result is published are filtered by it
+     * too, not by the previous query. It shall be called from the UI thread.
+     */
+    public void filter(CharSequence query) {
+        filterQuery = query;
+        refresh();
+    }
+
+    /**
+     * When the contacts change, they are sorted and filtered again by the
+     * current filter query. Meanwhile, the contacts shown do not change.
+     */
+    private void refresh() {
+        getFilter().filter(filterQuery);
+    }
+
+    /**
+     * It returns the number of Contact objects being shown.
      */
     @Override
     public int getCount() {
-        return arrayListContacts.size();
+        return shownContacts.positions.length;
     }
 
     /**
      * It returns a Contact object reference from a specific position in the
-     * contacts array list.
+     * contacts being shown.
      * 
      * @param position
-     *            index in the contacts array list for the required Contact
+     *            index in the contacts being shown for the required Contact
      *            object
      * 
      * @return Contact object reference
      */
     @Override
     public Object getItem(int position) {
-        return arrayListContacts.get(position);
+        return shownContacts.contactList.get(shownContacts.positions[position]);
     }
 
     /**
-     * It returns an ID for a specific position in the contacts array list.
+     * It returns a stable ID for the contact in a specific position in the
+     * contacts being shown. The same contact always gets the same ID, no
+     * matter its position.
      */
     @Override
     public long getItemId(int position) {
-        return position;
+        return shownContacts.contactList.getStableId(shownContacts.positions[position]);
+    }
+
+    /**
+     * It returns the picture URL of the contact in a specific position in the
+     * contacts being shown, without creating the whole contact.
+     */
+    public String getPictureUrl(int position) {
+        return shownContacts.contactList.getPictureUrl(shownContacts.positions[position]);
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    /**
+     * It returns the first letters of the names of the contacts being shown.
+     */
+    @Override
+    public Object[] getSections() {
+        return shownContacts.sections;
+    }
+
+    @Override
+    public int getPositionForSection(int section) {
+        int[] sectionStarts = shownContacts.sectionStarts;
+        if (sectionStarts.length == 0) {
+            return 0;
+        }
+        return sectionStarts[Math.max(0, Math.min(section, sectionStarts.length - 1))];
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        int section = Arrays.binarySearch(shownContacts.sectionStarts, position);
+        return section >= 0 ? section : Math.max(0, -section - 2);
     }
 
     /**
      * It's used to set a specific Contact to a row layout in the contacts list
-     * view object.
+     * view object. The first row of each section also shows its header.
      */
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
 
-        Log.d(TAG, "getView called for position : " + position);
+        // Nothing is logged here, as it's called for each row bound while
+        // scrolling
+        long start = Tracer.ENABLED ? Tracer.begin() : 0;
+        long bindStart = ListMetrics.beginBind();
 
         // Using the View Holder pattern to avoid inflate a new layout object
         // each time this method is called
@@ -102,11 +369,23 @@ public class ContactAdapter extends BaseAdapter {
             vHolder = (ContactViewHolder) convertView.getTag();
         }
 
+        int section = getSectionForPosition(position);
+        vHolder.setSectionHeader(getPositionForSection(section) == position
+                ? shownContacts.sections[section] : null);
+
         // Sets the contact data to the row's layout elements before returning
         // the row's reference
-        vHolder.setData(position, (Contact) getItem(position));
+        CompactContactList list = shownContacts.contactList;
+        int listPosition = shownContacts.positions[position];
+        vHolder.setData(position, list.getName(listPosition), list.getProfileUrl(listPosition),
+                list.getPictureUrl(listPosition));
+
+        if (Tracer.ENABLED) {
+            Tracer.end(Tracer.EVENT_GET_VIEW, position, start);
+        }
+        ListMetrics.endBind(bindStart);
 
         return convertView;
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,56 @@
+package com.rafasimionato.wmproject.data;
+
+import java.util.ArrayList;
+
+/**
+ * It hands contacts to a listener in batches of BATCH_SIZE, so the contacts
+ * converted off the UI thread from a page of people are handed to the UI
+ * thread a batch at a time, instead of one message for each contact or one
+ * for the whole page.
+ * 
+ * It shall be used by a single thread. The last contacts of a page, fewer
+ * than a batch, are only handed when flush is called.
+ */
+public class ContactBatcher {
+
+    // Number of contacts handed at once to the listener
+    public static final int BATCH_SIZE = 50;
+
+    /**
+     * It receives each batch of contacts, on the thread adding them.
+     */
+    public interface BatchListener {
+
+        void onBatch(Contact[] batch);
+    }
+
+    private final BatchListener listener;
+    private final ArrayList<Contact> batch = new ArrayList<Contact>(BATCH_SIZE);
+
+    public ContactBatcher(BatchListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * It appends the entry contact to the current batch, handing the batch to
+     * the listener once it's full.
+     */
+    public void add(Contact contact) {
+        batch.add(contact);
+        if (batch.size() == BATCH_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * It hands the contacts of the current batch to the listener, if there is
+     * any.
+     */
+    public void flush() {
+        if (!batch.isEmpty()) {
+            listener.onBatch(batch.toArray(new Contact[batch.size()]));
+            batch.clear();
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+package com.rafasimionato.wmproject.data;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * This is the difference between two compact lists of contacts
+ * { @see CompactContactList }, matching their contacts by stable ID. Each
+ * contact of the new list is either unchanged, changed (same stable ID but
+ * any other data differs) or inserted, and the contacts of the old list not
+ * found in the new one were removed.
+ * 
+ * The diff reads the stable ID and the packed data of every contact, so it
+ * shall be computed off the UI thread.
+ */
+public class ContactListDiff {
+
+    private final int inserted;
+    private final int removed;
+    private final int changed;
+
+    // Position in the new list of each unchanged contact of the old list, or
+    // -1 for the ones removed or changed
+    private final int[] newPositions;
+
+    // Positions in the new list of the contacts inserted or changed, ascending
+    private final int[] addedPositions;
+
+    private ContactListDiff(int inserted, int removed, int changed, int[] newPositions,
+            int[] addedPositions) {
+        this.inserted = inserted;
+        this.removed = removed;
+        this.changed = changed;
+        this.newPositions = newPositions;
+        this.addedPositions = addedPositions;
+    }
+
+    /**
+     * It compares the first oldSize contacts of the old list with the first
+     * newSize contacts of the new list. Comparing the same list with a larger
+     * size only finds the contacts appended, without reading any of them.
+     */
+    public static ContactListDiff compute(CompactContactList oldList, int oldSize,
+            CompactContactList newList, int newSize) {
+
+        int[] newPositions = new int[oldSize];
+
+        if (oldList == newList && oldSize <= newSize) {
+            for (int i = 0; i < oldSize; i++) {
+                newPositions[i] = i;
+            }
+            int[] addedPositions = new int[newSize - oldSize];
+            for (int i = 0; i < addedPositions.length; i++) {
+                addedPositions[i] = oldSize + i;
+            }
+            return new ContactListDiff(addedPositions.length, 0, 0, newPositions,
+                    addedPositions);
+        }
+
+        HashMap<Long, Integer> oldPositions = new HashMap<Long, Integer>(oldSize * 2);
+        for (int i = 0; i < oldSize; i++) {
+            oldPositions.put(oldList.getStableId(i), i);
+        }
+
+        Arrays.fill(newPositions, -1);
+        int[] addedPositions = new int[newSize];
+        int addedCount = 0;
+        int unchanged = 0;
+        int changed = 0;
+        for (int i = 0; i < newSize; i++) {
+            Integer oldPosition = oldPositions.remove(newList.getStableId(i));
+            if (oldPosition == null) {
+                addedPositions[addedCount++] = i;
+            } else if (oldList.contentEquals(oldPosition, newList, i)) {
+                newPositions[oldPosition] = i;
+                unchanged++;
+            } else {
+                addedPositions[addedCount++] = i;
+                changed++;
+            }
+        }
+
+        return new ContactListDiff(addedCount - changed, oldSize - unchanged - changed, changed,
+                newPositions, Arrays.copyOf(addedPositions, addedCount));
+    }
+
+    /**
+     * It returns true if no contact was inserted, removed or changed.
+     */
+    public boolean isEmpty() {
+        return inserted + removed + changed == 0;
+    }
+
+    public int getInserted() {
+        return inserted;
+    }
+
+    public int getRemoved() {
+        return removed;
+    }
+
+    public int getChanged() {
+        return changed;
+    }
+
+    /**
+     * It returns the position in the new list of the contact in the entry
+     * position of the old list, or -1 if it was removed or changed.
+     */
+    public int getNewPosition(int oldPosition) {
+        return newPositions[oldPosition];
+    }
+
+    /**
+     * It returns the positions in the new list of the contacts inserted or
+     * changed, in ascending order.
+     */
+    public int[] getAddedPositions() {
+        return addedPositions;
+    }
+
+    @Override
+    public String toString() {
+        return inserted + " inserted, " + removed + " removed, " + changed + " changed";
+    }
+
+}
@@ -0,0 +1,204 @@
+package com.rafasimionato.wmproject.data;
+
+import java.util.HashMap;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.view.View;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+
+import com.rafasimionato.wmproject.image.BitmapCache;
+import com.rafasimionato.wmproject.image.BitmapDecoder;
+import com.rafasimionato.wmproject.image.BitmapHandlerDownloadTask;
+import com.rafasimionato.wmproject.image.BitmapLoaderExecutor;
+import com.rafasimionato.wmproject.util.Tracer;
+
+/**
+ * This class listens to the scrolling of the list view object
+ * { @see listView_contactsList } to prefetch the pictures of the contacts
+ * about to be shown, so they are already in the BitmapCache when their rows
+ * get bound and the default bitmap is not shown first.
+ * 
+ * Pictures are prefetched for the rows following the visible ones in the
+ * scroll direction. The number of rows is how many rows are expected to
+ * scroll into the screen while a picture is downloaded, given the measured
+ * scroll velocity and download time { @see getPrefetchCount }.
+ * 
+ * While the list view is flinging, rows go out of the screen before their
+ * pictures could be shown, so network work is paused { @see
+ * BitmapLoaderExecutor } and resumed when the scrolling stops. Prefetches for
+ * rows no longer ahead of the scrolling are cancelled.
+ * 
+ * All methods shall be called from the UI thread.
+ */
+public class ContactPrefetcher implements OnScrollListener {
+
+    // Bounds for the number of rows prefetched ahead of the visible ones
+    private static final int MIN_PREFETCH_COUNT = 4;
+    private static final int MAX_PREFETCH_COUNT = 40;
+
+    private final ContactAdapter contactAdapter;
+    private final BitmapLoaderExecutor loaderExecutor;
+
+    private int scrollState = SCROLL_STATE_IDLE;
+
+    // Last first visible row and when it changed, used to measure the scroll
+    // velocity
+    private int firstVisibleItem = -1;
+    private int visibleItemCount = 0;
+    private long firstVisibleItemTime = 0;
+
+    // Smoothed scroll velocity, in rows per second, and the last scroll
+    // direction (1 down the list, -1 up the list)
+    private float rowsPerSecond = 0;
+    private int direction = 1;
+
+    // Prefetch tasks started by the last prefetch, by their cache key
+    private HashMap<String, BitmapHandlerDownloadTask> prefetchTasks =
+            new HashMap<String, BitmapHandlerDownloadTask>();
+
+    /**
+     * @param context
+     *            any context of the application
+     * @param contactAdapter
+     *            adapter of the list view object which scrolling is listened
+     */
+    public ContactPrefetcher(Context context, ContactAdapter contactAdapter) {
+        this.contactAdapter = contactAdapter;
+        loaderExecutor = BitmapLoaderExecutor.getInstance(context);
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+
+        this.scrollState = scrollState;
+
+        if (scrollState == SCROLL_STATE_FLING) {
+            loaderExecutor.pauseNetwork();
+        } else {
+            loaderExecutor.resumeNetwork();
+            if (scrollState == SCROLL_STATE_IDLE) {
+                prefetch(view);
+            }
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+
+        this.visibleItemCount = visibleItemCount;
+
+        long now = SystemClock.uptimeMillis();
+        if (this.firstVisibleItem < 0) {
+            this.firstVisibleItem = firstVisibleItem;
+            firstVisibleItemTime = now;
+            return;
+        }
+        if (firstVisibleItem == this.firstVisibleItem) {
+            return;
+        }
+
+        int rows = firstVisibleItem - this.firstVisibleItem;
+        long elapsed = Math.max(1, now - firstVisibleItemTime);
+        direction = rows > 0 ? 1 : -1;
+        rowsPerSecond += (Math.abs(rows) * 1000f / elapsed - rowsPerSecond) / 4;
+        this.firstVisibleItem = firstVisibleItem;
+        firstVisibleItemTime = now;
+
+        // While flinging, prefetching waits for the scrolling to stop
+        if (scrollState == SCROLL_STATE_TOUCH_SCROLL) {
+            prefetch(view);
+        }
+    }
+
+    /**
+     * It returns how many rows ahead of the visible ones shall be prefetched,
+     * which is how many rows the last scroll velocity brings into the screen
+     * while one picture is downloaded.
+     */
+    private int getPrefetchCount() {
+        float rowsAhead = rowsPerSecond * BitmapHandlerDownloadTask.getAverageDownloadMillis()
+                / 1000f;
+        return Math.max(MIN_PREFETCH_COUNT, Math.min(MAX_PREFETCH_COUNT,
+                (int) Math.ceil(rowsAhead)));
+    }
+
+    /**
+     * It prefetches the pictures not cached yet for the rows ahead of the
+     * visible ones, and cancels the previous prefetches no longer ahead.
+     */
+    private void prefetch(AbsListView view) {
+
+        BitmapDecoder decoder = getDecoder(view);
+        if (decoder == null || firstVisibleItem < 0) {
+            return;
+        }
+
+        int count = getPrefetchCount();
+        int first = direction > 0 ? firstVisibleItem + visibleItemCount : firstVisibleItem - 1;
+
+        HashMap<String, BitmapHandlerDownloadTask> previousTasks = prefetchTasks;
+        prefetchTasks = new HashMap<String, BitmapHandlerDownloadTask>();
+
+        // Prefetch tasks are served from the most recent one, so the nearest
+        // row is requested last
+        for (int i = count - 1; i >= 0; i--) {
+            int position = first + i * direction;
+            if (position < 0 || position >= contactAdapter.getCount()) {
+                continue;
+            }
+            String url = contactAdapter.getPictureUrl(position);
+            if (url == null) {
+                continue;
+            }
+            String cacheKey = decoder.getCacheKey(url);
+            if (BitmapCache.getInstance().contains(cacheKey)) {
+                continue;
+            }
+            BitmapHandlerDownloadTask task = previousTasks.remove(cacheKey);
+            if (task == null || task.getStatus() == BitmapHandlerDownloadTask.Status.FINISHED) {
+                task = BitmapHandlerDownloadTask.prefetch(url, decoder, view.getContext());
+            }
+            prefetchTasks.put(cacheKey, task);
+        }
+
+        for (BitmapHandlerDownloadTask task : previousTasks.values()) {
+            task.cancelPrefetch();
+        }
+
+        if (Tracer.ENABLED) {
+            Tracer.mark(Tracer.EVENT_PREFETCH, prefetchTasks.size());
+        }
+    }
+
+    /**
+     * It returns the decoder of any visible row, so prefetched pictures have
+     * the size of the rows, or null if no row is visible.
+     */
+    private BitmapDecoder getDecoder(AbsListView view) {
+        for (int i = 0; i < view.getChildCount(); i++) {
+            View child = view.getChildAt(i);
+            if (child.getTag() instanceof ContactViewHolder) {
+                return ((ContactViewHolder) child.getTag()).getBitmapDecoder();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * It cancels all prefetches and resumes network work, in case it was
+     * paused by a fling. It shall be called when the list view is no longer
+     * visible.
+     */
+    public void cancel() {
+        for (BitmapHandlerDownloadTask task : prefetchTasks.values()) {
+            task.cancelPrefetch();
+        }
+        prefetchTasks.clear();
+        scrollState = SCROLL_STATE_IDLE;
+        loaderExecutor.resumeNetwork();
+    }
+
+}
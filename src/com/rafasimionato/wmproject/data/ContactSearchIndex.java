@@ -0,0 +1,174 @@
+package com.rafasimionato.wmproject.data;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * This is an immutable search index over the names of the contacts in a
+ * compact list { @see CompactContactList }, used to filter the contacts list
+ * view as the user types.
+ * 
+ * Names are normalized (lower case, without accents) and split into tokens.
+ * All tokens are kept in a sorted array, along with the position of their
+ * contact, so the contacts having a token starting with a given prefix are
+ * found by binary search instead of by scanning all names. A contact matches
+ * a query when each query token is a prefix of any token of its name, so
+ * "jo si" finds "Joana da Silva", and "jose" also finds the names written
+ * with an accent.
+ * 
+ * Building the index reads all names, so it shall be done off the UI thread.
+ */
+public class ContactSearchIndex {
+
+    private final CompactContactList contactList;
+    private final int size;
+
+    // Sorted tokens and the position of the contact each one came from
+    private final String[] tokens;
+    private final int[] positions;
+
+    /**
+     * It indexes the first size contacts of the entry list.
+     */
+    public ContactSearchIndex(CompactContactList contactList, int size) {
+
+        this.contactList = contactList;
+        this.size = size;
+
+        // Tokens are collected with their contact position, and then sorted
+        // together through an array of indexes
+        String[] unsortedTokens = new String[size * 2];
+        int[] unsortedPositions = new int[size * 2];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            for (String token : tokenize(contactList.getName(i))) {
+                if (count == unsortedTokens.length) {
+                    unsortedTokens = Arrays.copyOf(unsortedTokens, count * 2 + 1);
+                    unsortedPositions = Arrays.copyOf(unsortedPositions, count * 2 + 1);
+                }
+                unsortedTokens[count] = token;
+                unsortedPositions[count] = i;
+                count++;
+            }
+        }
+
+        final String[] sortKeys = unsortedTokens;
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer a, Integer b) {
+                return sortKeys[a].compareTo(sortKeys[b]);
+            }
+        });
+
+        tokens = new String[count];
+        positions = new int[count];
+        for (int i = 0; i < count; i++) {
+            tokens[i] = unsortedTokens[order[i]];
+            positions[i] = unsortedPositions[order[i]];
+        }
+    }
+
+    /**
+     * It returns true if this index covers exactly the first size contacts of
+     * the entry list.
+     */
+    public boolean covers(CompactContactList contactList, int size) {
+        return this.contactList == contactList && this.size == size;
+    }
+
+    /**
+     * It returns the positions of the contacts matching the entry query, or
+     * null if the query is empty, which matches all indexed contacts.
+     */
+    public BitSet search(CharSequence query) {
+
+        String[] queryTokens = tokenize(query == null ? null : query.toString());
+
+        BitSet matches = null;
+        for (String queryToken : queryTokens) {
+            BitSet tokenMatches = new BitSet(size);
+            for (int i = lowerBound(queryToken); i < tokens.length
+                    && tokens[i].startsWith(queryToken); i++) {
+                tokenMatches.set(positions[i]);
+            }
+            if (matches == null) {
+                matches = tokenMatches;
+            } else {
+                matches.and(tokenMatches);
+            }
+            if (matches.isEmpty()) {
+                break;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * It returns the index of the first token not lower than the entry one.
+     */
+    private int lowerBound(String token) {
+        int low = 0;
+        int high = tokens.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (tokens[middle].compareTo(token) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * It splits the entry text into normalized tokens: lower case letters and
+     * digits, without accents.
+     */
+    static String[] tokenize(String text) {
+        if (text == null || text.length() == 0) {
+            return new String[0];
+        }
+        String folded = fold(text);
+        String[] tokens = new String[4];
+        int count = 0;
+        int start = -1;
+        for (int i = 0; i <= folded.length(); i++) {
+            boolean letterOrDigit = i < folded.length()
+                    && Character.isLetterOrDigit(folded.charAt(i));
+            if (letterOrDigit && start < 0) {
+                start = i;
+            } else if (!letterOrDigit && start >= 0) {
+                if (count == tokens.length) {
+                    tokens = Arrays.copyOf(tokens, count * 2);
+                }
+                tokens[count++] = folded.substring(start, i);
+                start = -1;
+            }
+        }
+        return Arrays.copyOf(tokens, count);
+    }
+
+    /**
+     * It returns the entry text in lower case, without accents.
+     */
+    static String fold(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder sb = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                sb.append(c);
+            }
+        }
+        return sb.toString().toLowerCase(Locale.ROOT);
+    }
+
+}
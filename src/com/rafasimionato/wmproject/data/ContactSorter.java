@@ -0,0 +1,42 @@
+package com.rafasimionato.wmproject.data;
+
+/**
+ * It keeps the contacts of a list sorted by name { @see SortedContacts } as
+ * the list grows or gets reloaded. The first time, the contacts are sorted
+ * from scratch. Then, only the contacts inserted or changed since the last
+ * sort are sorted and merged into the previous order { @see ContactListDiff }.
+ * 
+ * It shall be used by a single thread, e.g. the filter thread of the adapter.
+ */
+public class ContactSorter {
+
+    private SortedContacts sortedContacts = null;
+
+    /**
+     * It sorts the first size contacts of the entry list. It returns the
+     * difference from the contacts sorted last time, or null if they were
+     * sorted from scratch.
+     * 
+     * Even when nothing changed, the order is moved to the entry list, so the
+     * previous list is not compared again on the next sort.
+     */
+    public ContactListDiff sort(CompactContactList contactList, int size) {
+        if (sortedContacts == null) {
+            sortedContacts = SortedContacts.sort(contactList, size);
+            return null;
+        }
+        ContactListDiff diff = ContactListDiff.compute(sortedContacts.getContactList(),
+                sortedContacts.size(), contactList, size);
+        sortedContacts = sortedContacts.update(contactList, size, diff);
+        return diff;
+    }
+
+    /**
+     * It returns the contacts sorted last time, or null if they were never
+     * sorted.
+     */
+    public SortedContacts getSortedContacts() {
+        return sortedContacts;
+    }
+
+}
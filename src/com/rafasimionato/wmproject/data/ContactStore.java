@@ -0,0 +1,190 @@
+package com.rafasimionato.wmproject.data;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+/**
+ * This class implements the singleton design pattern to keep the contacts of
+ * the connected account in a local SQLite database, so the list view object
+ * { @see listView_contactsList } can be filled as soon as the application is
+ * launched, before the contacts are loaded again from the network.
+ * 
+ * The list view shows the contacts sorted by name, so their order is not
+ * stored, and they are read already sorted by name. When they are loaded
+ * again, the new list is compared with the stored one by contact ID, and only
+ * the contacts inserted, removed or changed are written. Please @see update.
+ * 
+ * The stored contacts belong to the account connected when they were loaded,
+ * so they shall be cleared when the user signs out. Please @see clear.
+ * 
+ * Contacts without an ID are not stored. All methods access the database, so
+ * they shall not be called from the UI thread.
+ */
+public class ContactStore extends SQLiteOpenHelper {
+
+    private static final String TAG = "ContactStore";
+
+    private static ContactStore mContactStore = null;
+
+    private static final String DATABASE_NAME = "contacts.db";
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String TABLE_CONTACTS = "contacts";
+    private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_NAME = "name";
+    private static final String COLUMN_PROFILE_URL = "profile_url";
+    private static final String COLUMN_PICTURE_URL = "picture_url";
+
+    private static final String[] COLUMNS = { COLUMN_ID, COLUMN_NAME, COLUMN_PROFILE_URL,
+            COLUMN_PICTURE_URL };
+
+    private ContactStore(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    /**
+     * It returns the single instance for the contact store object.
+     * 
+     * @param context
+     *            any context of the application
+     */
+    public static synchronized ContactStore getInstance(Context context) {
+        if (mContactStore == null) {
+            mContactStore = new ContactStore(context.getApplicationContext());
+        }
+        return mContactStore;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_CONTACTS + " (" + COLUMN_ID + " TEXT PRIMARY KEY, "
+                + COLUMN_NAME + " TEXT, " + COLUMN_PROFILE_URL + " TEXT, " + COLUMN_PICTURE_URL
+                + " TEXT)");
+    }
+
+    /**
+     * The stored contacts are just a copy of the ones loaded from the network,
+     * so they are dropped when the schema changes.
+     */
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_CONTACTS);
+        onCreate(db);
+    }
+
+    /**
+     * It returns the stored contacts sorted by name, or an empty list if there
+     * is none. For further information about the returned list @see
+     * CompactContactList
+     */
+    public CompactContactList getContacts() {
+        Cursor cursor = getReadableDatabase().query(TABLE_CONTACTS, COLUMNS, null, null, null,
+                null, COLUMN_NAME);
+        CompactContactList contacts = new CompactContactList(cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                contacts.add(readContact(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        contacts.trimToSize();
+        Log.d(TAG, contacts.size() + " contacts read from the store");
+        return contacts;
+    }
+
+    /**
+     * It replaces the stored contacts by the entry ones. Only the contacts
+     * inserted, removed or changed since the last update are written, in a
+     * single transaction.
+     * 
+     * @return the number of contacts inserted, removed or changed
+     */
+    public int update(List<Contact> contacts) {
+
+        SQLiteDatabase db = getWritableDatabase();
+        int changes = 0;
+
+        db.beginTransaction();
+        try {
+
+            Map<String, Contact> storedContacts = readStoredContacts(db);
+
+            for (Contact contact : contacts) {
+                String id = contact.getId();
+                if (id == null) {
+                    continue;
+                }
+                Contact stored = storedContacts.remove(id);
+                if (stored == null) {
+                    db.insertWithOnConflict(TABLE_CONTACTS, null, toValues(contact),
+                            SQLiteDatabase.CONFLICT_REPLACE);
+                    changes++;
+                } else if (!stored.equals(contact)) {
+                    db.update(TABLE_CONTACTS, toValues(contact), COLUMN_ID + " = ?",
+                            new String[] { id });
+                    changes++;
+                }
+            }
+
+            // Whatever was not found in the entry list has been removed
+            for (String id : storedContacts.keySet()) {
+                db.delete(TABLE_CONTACTS, COLUMN_ID + " = ?", new String[] { id });
+                changes++;
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        Log.d(TAG, changes + " contacts changed in the store");
+        return changes;
+    }
+
+    /**
+     * It deletes all stored contacts.
+     */
+    public void clear() {
+        int deleted = getWritableDatabase().delete(TABLE_CONTACTS, null, null);
+        Log.d(TAG, deleted + " contacts deleted from the store");
+    }
+
+    private Map<String, Contact> readStoredContacts(SQLiteDatabase db) {
+        Map<String, Contact> storedContacts = new HashMap<String, Contact>();
+        Cursor cursor = db.query(TABLE_CONTACTS, COLUMNS, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                Contact contact = readContact(cursor);
+                storedContacts.put(contact.getId(), contact);
+            }
+        } finally {
+            cursor.close();
+        }
+        return storedContacts;
+    }
+
+    // Column indexes follow the COLUMNS array
+    private static Contact readContact(Cursor cursor) {
+        return new Contact(cursor.getString(0), cursor.getString(1), cursor.getString(2),
+                cursor.getString(3));
+    }
+
+    private static ContentValues toValues(Contact contact) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_ID, contact.getId());
+        values.put(COLUMN_NAME, contact.getName());
+        values.put(COLUMN_PROFILE_URL, contact.getProfileUrl());
+        values.put(COLUMN_PICTURE_URL, contact.getPictureUrl());
+        return values;
+    }
+
+}
@@ -7,6 +7,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.rafasimionato.wmproject.R;
+import com.rafasimionato.wmproject.image.BitmapDecoder;
 import com.rafasimionato.wmproject.image.BitmapHandler;
 import com.rafasimionato.wmproject.image.BitmapHandlerDownloadTask;
 
@@ -32,13 +33,15 @@ public class ContactViewHolder {
     // These are the view holder references for the row layout elements. Their
     // data may change high frequently according the scrolling of the list view
     // object every time getView method of ContactAdapter is called
+    private final TextView sectionHeader;
     private final ImageView picture;
     private final TextView name;
     private final TextView profileUrl;
 
     // It handles how to set bitmaps for the ImageView object referred by the
-    // view holder
-    private final BitmapHandler mBitmapHandler = new BitmapHandler();
+    // view holder. Pictures in the list are small, so they are decoded with 2
+    // bytes per pixel when possible
+    private final BitmapHandler mBitmapHandler = new BitmapHandler(true);
 
     // It holds a weak reference to the last task thrown to download a bitmap
     // for the ImageView object referred by the view holder
@@ -54,6 +57,7 @@ public class ContactViewHolder {
      *            activity_friends_list layout.
      */
     public ContactViewHolder(View layoutRow) {
+        sectionHeader = (TextView) layoutRow.findViewById(R.id.textView_sectionHeader);
         picture = (ImageView) layoutRow.findViewById(R.id.imageView_contactPicture);
         name = (TextView) layoutRow.findViewById(R.id.textView_contactName);
         profileUrl = (TextView) layoutRow.findViewById(R.id.textView_contactProfileUrl);
@@ -76,9 +80,33 @@ public class ContactViewHolder {
      *            entry data to be mapped to the row layout elements
      */
     public void setData(int position, Contact contact) {
-        name.setText(contact.getName());
-        profileUrl.setText(contact.getProfileUrl());
-        mBitmapHandler.setBitmap(position, contact.getPictureUrl(), this);
+        setData(position, contact.getName(), contact.getProfileUrl(), contact.getPictureUrl());
+    }
+
+    /**
+     * It does the same as setData(int, Contact), but it takes only the contact
+     * fields bound to the row layout elements, so the whole contact does not
+     * need to be created from a compact list { @see CompactContactList }.
+     */
+    public void setData(int position, String contactName, String contactProfileUrl,
+            String contactPictureUrl) {
+        name.setText(contactName);
+        profileUrl.setText(contactProfileUrl);
+        mBitmapHandler.setBitmap(position, contactPictureUrl, this);
+    }
+
+    /**
+     * It shows the entry section header above the row, or hides it if the
+     * entry header is null, which is the case for all rows but the first one
+     * of each section.
+     */
+    public void setSectionHeader(String header) {
+        if (header == null) {
+            sectionHeader.setVisibility(View.GONE);
+        } else {
+            sectionHeader.setText(header);
+            sectionHeader.setVisibility(View.VISIBLE);
+        }
     }
 
     /**
@@ -88,6 +116,15 @@ public class ContactViewHolder {
         return picture;
     }
 
+    /**
+     * It returns the decoder used for bitmaps set to the ImageView object
+     * referred by the view holder, so bitmaps prefetched for other rows are
+     * cached under the same key { @see ContactPrefetcher }.
+     */
+    public BitmapDecoder getBitmapDecoder() {
+        return mBitmapHandler.getDecoder(picture);
+    }
+
     /**
      * It returns a reference to the last task thrown to download a bitmap for
      * the ImageView object referred by the view holder.
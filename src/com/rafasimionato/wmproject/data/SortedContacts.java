@@ -0,0 +1,201 @@
+package com.rafasimionato.wmproject.data;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+
+/**
+ * This is an immutable order of the contacts in a compact list
+ * { @see CompactContactList }, sorted by name according to the collation
+ * rules of the default locale, along with the section each contact belongs
+ * to, which is the first letter of its name without accents.
+ * 
+ * Updating the order when the contacts change does not sort them all again.
+ * The contacts unchanged since the previous order keep their place and their
+ * collation key, only the contacts inserted or changed are sorted, and then
+ * they are merged into the previous order. This holds for contacts appended
+ * to the same list as well as for a new list of contacts compared with the
+ * previous one { @see ContactListDiff }. Please @see update.
+ * 
+ * Sorting reads the contact names, so it shall be done off the UI thread.
+ */
+public class SortedContacts {
+
+    // Section for the names not starting with a letter
+    private static final char OTHER_SECTION = '#';
+
+    private final CompactContactList contactList;
+    private final int size;
+
+    // Positions in the list sorted by name, and the collation key of each one
+    private final int[] order;
+    private final CollationKey[] sortedKeys;
+
+    // Section of each contact, by its position in the list
+    private final char[] sections;
+
+    private SortedContacts(CompactContactList contactList, int size, int[] order,
+            CollationKey[] sortedKeys, char[] sections) {
+        this.contactList = contactList;
+        this.size = size;
+        this.order = order;
+        this.sortedKeys = sortedKeys;
+        this.sections = sections;
+    }
+
+    /**
+     * It sorts the first size contacts of the entry list.
+     */
+    public static SortedContacts sort(CompactContactList contactList, int size) {
+        int[] positions = new int[size];
+        for (int i = 0; i < size; i++) {
+            positions[i] = i;
+        }
+        return merge(contactList, size, null, null, positions);
+    }
+
+    /**
+     * It returns the order of the first size contacts of the entry list, given
+     * the difference between them and the contacts of this order. Only the
+     * contacts inserted or changed are sorted, and then merged into this
+     * order.
+     * 
+     * @param diff
+     *            difference from the contacts of this order to the entry ones
+     */
+    public SortedContacts update(CompactContactList contactList, int size, ContactListDiff diff) {
+        if (contactList == this.contactList && size == this.size) {
+            return this;
+        }
+        return merge(contactList, size, this, diff, diff.getAddedPositions());
+    }
+
+    /**
+     * It sorts the contacts in the entry added positions of the list and
+     * merges them with the contacts of the previous order still found by the
+     * diff, if there is any.
+     */
+    private static SortedContacts merge(CompactContactList contactList, int size,
+            SortedContacts previous, ContactListDiff diff, int[] addedPositions) {
+
+        Collator collator = Collator.getInstance();
+        int count = addedPositions.length;
+        final CollationKey[] keys = new CollationKey[count];
+        char[] sections = new char[size];
+        Integer[] newOrder = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            String name = contactList.getName(addedPositions[i]);
+            keys[i] = collator.getCollationKey(name == null ? "" : name);
+            sections[addedPositions[i]] = getSection(name);
+            newOrder[i] = i;
+        }
+        Arrays.sort(newOrder, new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer a, Integer b) {
+                return keys[a].compareTo(keys[b]);
+            }
+        });
+
+        // The contacts kept from the previous order, already sorted, with
+        // their positions in the new list
+        int keptCount = 0;
+        int[] keptOrder = new int[size - count];
+        CollationKey[] keptKeys = new CollationKey[size - count];
+        if (previous != null) {
+            for (int i = 0; i < previous.size; i++) {
+                int previousPosition = previous.order[i];
+                int position = diff.getNewPosition(previousPosition);
+                if (position >= 0) {
+                    keptOrder[keptCount] = position;
+                    keptKeys[keptCount] = previous.sortedKeys[i];
+                    sections[position] = previous.sections[previousPosition];
+                    keptCount++;
+                }
+            }
+        }
+
+        // Merging the new contacts into the kept ones
+        int[] order = new int[size];
+        CollationKey[] sortedKeys = new CollationKey[size];
+        int p = 0;
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            CollationKey newKey = n < count ? keys[newOrder[n]] : null;
+            if (newKey == null || (p < keptCount && keptKeys[p].compareTo(newKey) <= 0)) {
+                order[i] = keptOrder[p];
+                sortedKeys[i] = keptKeys[p];
+                p++;
+            } else {
+                order[i] = addedPositions[newOrder[n]];
+                sortedKeys[i] = keys[newOrder[n]];
+                n++;
+            }
+        }
+
+        return new SortedContacts(contactList, size, order, sortedKeys, sections);
+    }
+
+    /**
+     * It returns the section of the entry name: its first letter, in upper
+     * case and without accents, or OTHER_SECTION for names starting with a
+     * digit or without any letter.
+     */
+    private static char getSection(String name) {
+        if (name != null) {
+            String folded = ContactSearchIndex.fold(name);
+            for (int i = 0; i < folded.length(); i++) {
+                char c = folded.charAt(i);
+                if (Character.isLetter(c)) {
+                    return Character.toUpperCase(c);
+                } else if (Character.isDigit(c)) {
+                    break;
+                }
+            }
+        }
+        return OTHER_SECTION;
+    }
+
+    /**
+     * It returns the list sorted by this order.
+     */
+    public CompactContactList getContactList() {
+        return contactList;
+    }
+
+    /**
+     * It returns how many contacts of the list are sorted.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * It returns the positions in the list of the sorted contacts, keeping only
+     * the ones set in the entry matches, or all of them if matches is null.
+     */
+    public int[] getOrder(BitSet matches) {
+        if (matches == null) {
+            return order;
+        }
+        int[] filteredOrder = new int[matches.cardinality()];
+        int index = 0;
+        for (int position : order) {
+            if (matches.get(position)) {
+                filteredOrder[index++] = position;
+            }
+        }
+        return filteredOrder;
+    }
+
+    /**
+     * It returns the section of the contact in the entry position of the
+     * list.
+     */
+    public char getSection(int position) {
+        return sections[position];
+    }
+
+}
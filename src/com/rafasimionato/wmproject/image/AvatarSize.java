@@ -0,0 +1,100 @@
+package com.rafasimionato.wmproject.image;
+
+/**
+ * This class negotiates the size of the pictures requested to the Google+
+ * image server, which resizes each picture as required by the "sz" parameter
+ * appended to its URL.
+ * 
+ * Instead of always requesting the same size, the smallest size that covers
+ * the image view is requested. Sizes are snapped to a few canonical values,
+ * so the same picture requested by slightly different image views is still
+ * downloaded and cached only once.
+ */
+public final class AvatarSize {
+
+    // Parameter appended to the picture URL to request a specific size
+    private static final String SIZE_PARAMETER = "?sz=";
+
+    // Canonical sizes in pixels, from the smallest to the largest one
+    private static final int[] CANONICAL_SIZES = { 48, 96, 144, 256, 512 };
+
+    // Size requested when the image view size is still unknown
+    public static final int DEFAULT_SIZE = 144;
+
+    // Size of the thumbnail shown while a picture is downloaded on slow
+    // networks. It's not a canonical size, as thumbnails are never cached in
+    // memory
+    public static final int THUMBNAIL_SIZE = 16;
+
+    private AvatarSize() {
+    }
+
+    /**
+     * It returns the smallest canonical size that covers the entry size in
+     * pixels, or the largest canonical size if none does.
+     */
+    public static int forPixels(int pixels) {
+        if (pixels <= 0) {
+            return DEFAULT_SIZE;
+        }
+        for (int size : CANONICAL_SIZES) {
+            if (size >= pixels) {
+                return size;
+            }
+        }
+        return CANONICAL_SIZES[CANONICAL_SIZES.length - 1];
+    }
+
+    /**
+     * It returns the largest canonical size smaller than the entry one, or the
+     * smallest canonical size if none is.
+     */
+    public static int getSmallerSize(int size) {
+        int smallerSize = CANONICAL_SIZES[0];
+        for (int canonicalSize : CANONICAL_SIZES) {
+            if (canonicalSize < size) {
+                smallerSize = canonicalSize;
+            }
+        }
+        return smallerSize;
+    }
+
+    /**
+     * It returns the canonical sizes larger than the entry one, from the
+     * smallest to the largest one. Pictures cached with any of them can be
+     * scaled down to serve the entry size.
+     */
+    public static int[] getLargerSizes(int size) {
+        int index = 0;
+        while (index < CANONICAL_SIZES.length && CANONICAL_SIZES[index] <= size) {
+            index++;
+        }
+        int[] largerSizes = new int[CANONICAL_SIZES.length - index];
+        System.arraycopy(CANONICAL_SIZES, index, largerSizes, 0, largerSizes.length);
+        return largerSizes;
+    }
+
+    /**
+     * It returns the URL to request the picture with the entry size.
+     * 
+     * @param pictureUrl
+     *            picture URL without any size parameter
+     */
+    public static String toUrl(String pictureUrl, int size) {
+        return pictureUrl + SIZE_PARAMETER + size;
+    }
+
+    /**
+     * It removes any size parameter from the entry picture URL, as it's
+     * appended later according to the image view where the picture is set.
+     */
+    public static String stripSize(String pictureUrl) {
+        if (pictureUrl == null) {
+            return null;
+        }
+        int lastIndexForRedimensioning = pictureUrl.lastIndexOf(SIZE_PARAMETER);
+        return lastIndexForRedimensioning < 0 ? pictureUrl : pictureUrl.substring(0,
+                lastIndexForRedimensioning);
+    }
+
+}
@@ -1,81 +1,114 @@
 package com.rafasimionato.wmproject.image;
 
 import java.lang.ref.SoftReference;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import android.content.ComponentCallbacks2;
 import android.graphics.Bitmap;
+import android.util.Log;
 
 /**
  * This class implements the singleton design pattern to manage a cache filled
  * by two parts : one hard and one soft.
  * 
- * The hard part of the cache is initialized with 50% of its max capacity and
- * gets bigger on-the-fly. When max capacity is reached, the least-recently
- * accessed object is kicked out from the hard part to the soft part.
+ * The hard part of the cache is limited by a memory budget in bytes, which is
+ * a fraction of the maximum heap available to the application. Each bitmap is
+ * accounted by its real size in memory (row bytes times height) instead of
+ * counting entries. When the budget is exceeded, the least-recently accessed
+ * objects are kicked out from the hard part to the soft part.
  * 
- * The soft part of the cache is also initialized with 50% of the max capacity
- * of the hard part and gets bigger on-the-fly as needed.
+ * The soft part of the cache gets bigger on-the-fly as needed.
  * 
  * The object's references in hard part are not affected by the Garbage
  * Collector while the soft part references are too aggressively cleared when it
  * takes place.
  * 
+ * Bitmaps kicked out from the hard part that are not set to any image view are
+ * not kept in the soft part, but given to the bitmap pool { @see BitmapPool }
+ * to be reused when decoding new bitmaps.
+ * 
+ * The cache also keeps hit, miss and eviction counters and shrinks its hard
+ * part when the system asks the application to trim memory. Please @see
+ * trimMemory.
+ * 
+ * It's accessed at the same time by the UI thread and the download threads,
+ * so the hard part is a concurrent LRU cache { @see ConcurrentLruCache } where
+ * a hit never takes a lock.
+ * 
  * @author Rafael Simionato
  */
 public class BitmapCache {
 
+    private static final String TAG = "BitmapCache";
+
     private static BitmapCache mBitmapCache = null;
 
-    // Defines the maximum number of references for the hard part of the cache
-    private static final int MAX_HARD_CAPACITY = 100;
+    // Defines the fraction of the maximum heap used as budget by the hard part
+    // of the cache (1 / MEMORY_FRACTION_DIVIDER)
+    private static final int MEMORY_FRACTION_DIVIDER = 8;
 
-    // Hard cache, with a fixed maximum capacity
-    private final HashMap<String, Bitmap> hardCache;
+    // Hard cache, limited by a memory budget in bytes
+    private final ConcurrentLruCache<String, Bitmap> hardCache;
 
     // Soft cache for bitmaps kicked out of hard cache
     private final ConcurrentHashMap<String, SoftReference<Bitmap>> softCache;
 
-    private BitmapCache() {
+    // Counters used to check how effective the cache is
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
 
-        // It creates a new HashMap maintaining the ordering based on the last
+    private BitmapCache(int maxHardSizeInBytes) {
+
+        Log.d(TAG, "Creating bitmap cache with a budget of " + maxHardSizeInBytes + " bytes");
+
+        // It creates a LRU cache maintaining the ordering based on the last
         // accessed element (from least-recently accessed to most-recently
-        // accessed)
-        hardCache = new LinkedHashMap<String, Bitmap>(MAX_HARD_CAPACITY / 2, 0.75f, true) {
+        // accessed) and measuring each element by its size in bytes
+        hardCache = new ConcurrentLruCache<String, Bitmap>(maxHardSizeInBytes) {
 
-            private static final long serialVersionUID = 6153694168085284990L;
+            @Override
+            protected int sizeOf(String url, Bitmap bitmap) {
+                return getBitmapSize(bitmap);
+            }
 
             /**
-             * As soon as the max capacity is reached, the least-recently
-             * accessed object is transfered from the hard to the soft part of
-             * the cache
+             * As soon as the budget is exceeded, the least-recently accessed
+             * objects are transfered from the hard to the soft part of the
+             * cache, or to the bitmap pool if they are no longer shown
              */
             @Override
-            protected boolean removeEldestEntry(LinkedHashMap.Entry<String, Bitmap> eldest) {
-                if (size() > MAX_HARD_CAPACITY) {
-                    softCache.put(eldest.getKey(), new SoftReference<Bitmap>(eldest.getValue()));
-                    return true;
-                } else {
-                    return false;
+            protected void entryEvicted(String url, Bitmap bitmap) {
+                evictionCount.incrementAndGet();
+                if (!BitmapPool.getInstance().put(bitmap)) {
+                    softCache.put(url, new SoftReference<Bitmap>(bitmap));
                 }
             }
         };
 
         // Soft part of the cache for bitmaps kicked out from the hard part
-        softCache = new ConcurrentHashMap<String, SoftReference<Bitmap>>(MAX_HARD_CAPACITY / 2);
+        softCache = new ConcurrentHashMap<String, SoftReference<Bitmap>>();
     }
 
     /**
      * It returns the single instance for the bitmap cache object.
      */
-    public static BitmapCache getInstance() {
+    public static synchronized BitmapCache getInstance() {
         if (mBitmapCache == null) {
-            mBitmapCache = new BitmapCache();
+            mBitmapCache = new BitmapCache((int) (Runtime.getRuntime().maxMemory()
+                    / MEMORY_FRACTION_DIVIDER));
         }
         return mBitmapCache;
     }
 
+    /**
+     * It returns how many bytes a bitmap holds in memory.
+     */
+    public static int getBitmapSize(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
     /**
      * It adds the bitmap referred by the URL string to the cache.
      * 
@@ -86,9 +119,7 @@ public class BitmapCache {
      */
     public void addBitmapToCache(String url, Bitmap bitmap) {
         if (bitmap != null) {
-            synchronized (hardCache) {
-                hardCache.put(url, bitmap);
-            }
+            hardCache.put(url, bitmap);
         }
     }
 
@@ -100,39 +131,128 @@ public class BitmapCache {
      */
     public Bitmap getBitmap(String url) {
 
-        Bitmap bitmap;
-
-        synchronized (hardCache) {
+        // First try find it in the hard part. Getting it already records the
+        // element as the most-recently accessed one
+        Bitmap bitmap = hardCache.get(url);
+        if (bitmap != null) {
+            hitCount.incrementAndGet();
+            return bitmap;
+        }
 
-            // First try find it in the hard part
-            bitmap = hardCache.get(url);
+        // Then try find it in the soft part
+        SoftReference<Bitmap> bitmapReference = softCache.get(url);
+        if (bitmapReference != null) {
+            bitmap = bitmapReference.get();
             if (bitmap != null) {
-                // Bitmap found in hard cache
-                // Move element to first position, so that it is removed last
-                hardCache.remove(url);
-                hardCache.put(url, bitmap);
-                return bitmap;
-            }
-
-            // Then try find it in the soft part
-            SoftReference<Bitmap> bitmapReference = softCache.get(url);
-            if (bitmapReference != null) {
-                bitmap = bitmapReference.get();
-                if (bitmap != null) {
-                    // Bitmap found in soft cache
-                    // To avoid losing this bitmap reference, move it back to
-                    // first position in hard part and remove it from soft part
+                // Bitmap found in soft cache
+                // To avoid losing this bitmap reference, move it back to
+                // the hard part and remove it from soft part. Only the thread
+                // that removes it from the soft part promotes it
+                if (softCache.remove(url, bitmapReference)) {
                     hardCache.put(url, bitmap);
-                    softCache.remove(url);
-                    return bitmap;
-                } else {
-                    // Soft reference has been Garbage Collected
-                    softCache.remove(url);
                 }
+                hitCount.incrementAndGet();
+                return bitmap;
+            } else {
+                // Soft reference has been Garbage Collected
+                softCache.remove(url, bitmapReference);
             }
-
         }
+
+        missCount.incrementAndGet();
         return null;
     }
 
-}
\ No newline at end of file
+    /**
+     * It checks if a bitmap is cached, without counting a hit or a miss and
+     * without touching the access order of the hard part, so checking does not
+     * keep a bitmap cached. It's used to avoid prefetching bitmaps that are
+     * already cached.
+     * 
+     * @param url
+     *            key used to retrieved a bitmap from the cache
+     */
+    public boolean contains(String url) {
+        if (hardCache.containsKey(url)) {
+            return true;
+        }
+        SoftReference<Bitmap> bitmapReference = softCache.get(url);
+        return bitmapReference != null && bitmapReference.get() != null;
+    }
+
+    /**
+     * It shrinks the hard part of the cache according to the entry level
+     * received by onTrimMemory callbacks. Bitmaps kicked out from the hard
+     * part are still available in the soft part until the Garbage Collector
+     * clears them, except when the application is about to be killed, when
+     * both parts are cleared.
+     * 
+     * @param level
+     *            trim memory level as defined by ComponentCallbacks2
+     */
+    public void trimMemory(int level) {
+
+        Log.d(TAG, "trimMemory called with level " + level);
+
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            hardCache.evictAll();
+            softCache.clear();
+            BitmapPool.getInstance().clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            hardCache.evictAll();
+            BitmapPool.getInstance().clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            hardCache.trimToSize(hardCache.maxSize() / 4);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            hardCache.trimToSize(hardCache.maxSize() / 2);
+        }
+
+    }
+
+    /**
+     * It clears the hard part of the cache when the whole system is running
+     * low on memory.
+     */
+    public void onLowMemory() {
+        Log.d(TAG, "onLowMemory called");
+        hardCache.evictAll();
+        BitmapPool.getInstance().clear();
+    }
+
+    /**
+     * It returns how many bytes are currently held by the hard part.
+     */
+    public int getSize() {
+        return hardCache.size();
+    }
+
+    /**
+     * It returns the memory budget in bytes of the hard part.
+     */
+    public int getMaxSize() {
+        return hardCache.maxSize();
+    }
+
+    /**
+     * It returns how many times a bitmap was found in the cache.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * It returns how many times a bitmap was not found in the cache.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * It returns how many bitmaps were kicked out from the hard part.
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+}
@@ -0,0 +1,194 @@
+package com.rafasimionato.wmproject.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+
+/**
+ * This class decodes bitmaps for a given target size, instead of decoding the
+ * whole downloaded image no matter how big the image view that shows it is.
+ * 
+ * The image bounds are read first, so the image can be subsampled by a power
+ * of two down to the smallest size that still covers the target size, and
+ * then scaled down to it. Images without transparency may also be decoded
+ * using 2 bytes per pixel (RGB_565) instead of 4 (ARGB_8888).
+ * 
+ * Bitmaps are decoded into memory taken from the bitmap pool { @see BitmapPool }
+ * whenever possible, and they are always mutable so they can go back to the
+ * pool later.
+ * 
+ * The target size is the canonical avatar size { @see AvatarSize } that covers
+ * the image view, which is also the size requested to the image server. Since
+ * the same image may be decoded with different sizes, the key used to store a
+ * decoded bitmap in the cache includes the target size. Please @see
+ * getCacheKey.
+ */
+public class BitmapDecoder {
+
+    private static final String TAG = "BitmapDecoder";
+
+    private static final String MIME_TYPE_JPEG = "image/jpeg";
+
+    private final int size;
+    private final int reqWidth;
+    private final int reqHeight;
+    private final boolean preferRgb565;
+
+    /**
+     * @param size
+     *            canonical avatar size in pixels the bitmap is decoded for
+     * @param preferRgb565
+     *            if images without transparency shall be decoded with 2 bytes
+     *            per pixel
+     */
+    public BitmapDecoder(int size, boolean preferRgb565) {
+        this.size = size;
+        this.reqWidth = size;
+        this.reqHeight = size;
+        this.preferRgb565 = preferRgb565;
+    }
+
+    /**
+     * It creates a decoder for the size of the entry image view, snapped to
+     * the smallest canonical avatar size that covers it. If the image view was
+     * not measured yet, its layout parameters, minimum size and current
+     * drawable (usually the default bitmap) are used instead.
+     */
+    public static BitmapDecoder forImageView(ImageView imageView, boolean preferRgb565) {
+
+        ViewGroup.LayoutParams params = imageView.getLayoutParams();
+        Drawable drawable = imageView.getDrawable();
+
+        int width = getTargetSize(imageView.getWidth(), params == null ? 0 : params.width,
+                imageView.getMinimumWidth(), drawable == null ? 0 : drawable.getIntrinsicWidth());
+        int height = getTargetSize(imageView.getHeight(), params == null ? 0 : params.height,
+                imageView.getMinimumHeight(), drawable == null ? 0 : drawable.getIntrinsicHeight());
+
+        return new BitmapDecoder(AvatarSize.forPixels(Math.max(width, height)), preferRgb565);
+    }
+
+    /**
+     * It returns a decoder like this one for the entry canonical size.
+     */
+    public BitmapDecoder withSize(int size) {
+        return new BitmapDecoder(size, preferRgb565);
+    }
+
+    /**
+     * It returns the canonical avatar size this decoder decodes bitmaps for.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    private static int getTargetSize(int measured, int layoutParam, int minimum, int intrinsic) {
+        if (measured > 0) {
+            return measured;
+        }
+        if (layoutParam > 0) {
+            return layoutParam;
+        }
+        return Math.max(minimum, intrinsic);
+    }
+
+    /**
+     * It returns the key used to cache the bitmap referred by the entry URL
+     * decoded by this decoder.
+     */
+    public String getCacheKey(String url) {
+        String sizedUrl = AvatarSize.toUrl(url, size);
+        return preferRgb565 ? sizedUrl + ":565" : sizedUrl;
+    }
+
+    /**
+     * It decodes the entry encoded image for the target size.
+     * 
+     * @return the decoded bitmap or null if the data could not be decoded
+     */
+    public Bitmap decode(byte[] data) {
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+
+        // First only reading the image bounds
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight);
+
+        // Then scaling the subsampled image down to the target size
+        int sampledWidth = options.outWidth / options.inSampleSize;
+        int sampledHeight = options.outHeight / options.inSampleSize;
+        boolean scaled = reqWidth > 0 && reqHeight > 0 && sampledWidth > reqWidth
+                && sampledHeight > reqHeight;
+        if (scaled) {
+            options.inScaled = true;
+            if (sampledWidth * reqHeight > sampledHeight * reqWidth) {
+                options.inDensity = sampledHeight;
+                options.inTargetDensity = reqHeight;
+            } else {
+                options.inDensity = sampledWidth;
+                options.inTargetDensity = reqWidth;
+            }
+        }
+
+        if (preferRgb565 && MIME_TYPE_JPEG.equals(options.outMimeType)) {
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+        } else {
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        }
+
+        Log.d(TAG, "Decoding " + options.outWidth + "x" + options.outHeight + " image for "
+                + reqWidth + "x" + reqHeight + " with inSampleSize " + options.inSampleSize);
+
+        // Reusing the memory of a pooled bitmap. Before Android 4.4 it's only
+        // allowed for images decoded with their original size
+        options.inMutable = true;
+        if (BitmapPool.canReuseAnySize() || !scaled) {
+            int width = sampledWidth;
+            int height = sampledHeight;
+            if (scaled) {
+                float scale = options.inTargetDensity / (float) options.inDensity;
+                width = (int) (sampledWidth * scale + 0.5f);
+                height = (int) (sampledHeight * scale + 0.5f);
+            }
+            options.inBitmap = BitmapPool.getInstance().get(width, height,
+                    options.inPreferredConfig, options.inSampleSize);
+        }
+
+        if (options.inBitmap != null) {
+            try {
+                return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            } catch (IllegalArgumentException e) {
+                // The pooled bitmap could not be reused after all, so the
+                // bitmap is decoded into new memory
+                Log.d(TAG, "Unable to reuse pooled bitmap : " + e.getMessage());
+                options.inBitmap = null;
+            }
+        }
+
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    /**
+     * It returns the largest power of two that keeps both image dimensions
+     * bigger than or equal to the target ones.
+     */
+    private int calculateInSampleSize(int width, int height) {
+        int inSampleSize = 1;
+        if (reqWidth > 0 && reqHeight > 0) {
+            while ((width / (inSampleSize * 2)) >= reqWidth
+                    && (height / (inSampleSize * 2)) >= reqHeight) {
+                inSampleSize *= 2;
+            }
+        }
+        return inSampleSize;
+    }
+
+}
@@ -0,0 +1,733 @@
+package com.rafasimionato.wmproject.image;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.rafasimionato.wmproject.R;
+
+/**
+ * This class implements the singleton design pattern to manage a persistent
+ * cache of encoded bitmaps stored in the application cache directory. It works
+ * as a second tier under the BitmapCache, so bitmaps downloaded before are
+ * still available after the process gets killed.
+ * 
+ * Each entry is stored in its own file named by a MD5 hash of the bitmap URL.
+ * The cache is limited by a budget in bytes and the least-recently accessed
+ * files are deleted when it is exceeded. The access order is kept in a journal
+ * file, so it survives process death as well.
+ * 
+ * The journal is a plain text file where each line records one operation :
+ * 
+ * CLEAN <key> <size> : an entry was written
+ * READ <key> : an entry was accessed
+ * REMOVE <key> : an entry was deleted
+ * 
+ * Along with each entry, the validators received with it (ETag and
+ * Last-Modified headers) are stored in a metadata file, as well as when the
+ * entry was downloaded or last revalidated. Entries older than a time-to-live
+ * set by the image_cache_ttl_hours resource are returned as stale, so they
+ * are revalidated with the server before being used. Please @see getEntry
+ * and refresh.
+ * 
+ * The cache is shared by all loader threads, so the lock of the cache object
+ * only guards the index of entries and the journal. Entry files are read and
+ * written outside it : new data is written into a temporary file first, and
+ * only renamed into place while holding the lock.
+ * 
+ * Since it does disk I/O, no method of this class shall be called from the UI
+ * thread.
+ */
+public class BitmapDiskCache {
+
+    private static final String TAG = "BitmapDiskCache";
+
+    private static BitmapDiskCache mBitmapDiskCache = null;
+
+    // Sub-directory of the application cache directory for the entries
+    private static final String CACHE_DIRECTORY = "avatars";
+
+    // Defines the maximum number of bytes used by the entries
+    private static final long MAX_SIZE = 10 * 1024 * 1024;
+
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+
+    // Suffix of the metadata file of each entry, and of the files being
+    // written
+    private static final String META_SUFFIX = ".meta";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final String CLEAN = "CLEAN";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+
+    // When the journal has this number of redundant lines, it gets rebuilt
+    // keeping only the current entries
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    /**
+     * This is an encoded bitmap read from the cache, along with its
+     * validators.
+     */
+    public static final class Entry {
+
+        public final byte[] data;
+        // Validators received with the data, or null if there is none
+        public final String eTag;
+        public final String lastModified;
+        // It tells if the time-to-live of the entry has expired
+        public final boolean stale;
+
+        Entry(byte[] data, String eTag, String lastModified, boolean stale) {
+            this.data = data;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.stale = stale;
+        }
+    }
+
+    // Size of an entry in the index. Each write creates a new one, so a reader
+    // can tell if the entry it read is still the current one
+    private static final class IndexEntry {
+
+        final long size;
+
+        IndexEntry(long size) {
+            this.size = size;
+        }
+    }
+
+    private final File directory;
+
+    // Time an entry is used before it shall be revalidated
+    private final long timeToLiveMillis;
+
+    // Size of each entry, maintaining the ordering based on the last accessed
+    // element (from least-recently accessed to most-recently accessed)
+    private final LinkedHashMap<String, IndexEntry> entries = new LinkedHashMap<String, IndexEntry>(
+            0, 0.75f, true);
+
+    private long size = 0;
+    private int redundantOpCount = 0;
+    private Writer journalWriter = null;
+
+    private BitmapDiskCache(File directory, long timeToLiveMillis) {
+        this.directory = directory;
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    /**
+     * It returns the single instance for the bitmap disk cache object.
+     * 
+     * @param context
+     *            any context of the application, used to find its cache
+     *            directory and to read the time-to-live from the resources
+     */
+    public static synchronized BitmapDiskCache getInstance(Context context) {
+        if (mBitmapDiskCache == null) {
+            Context applicationContext = context.getApplicationContext();
+            long timeToLiveHours = applicationContext.getResources().getInteger(
+                    R.integer.image_cache_ttl_hours);
+            mBitmapDiskCache = new BitmapDiskCache(new File(applicationContext.getCacheDir(),
+                    CACHE_DIRECTORY), timeToLiveHours * 60 * 60 * 1000);
+        }
+        return mBitmapDiskCache;
+    }
+
+    /**
+     * It returns the encoded bitmap referred by the URL string or null if it
+     * is not found.
+     * 
+     * @param url
+     *            key used to retrieve the encoded bitmap from the cache
+     */
+    public byte[] get(String url) {
+
+        String key = hashKey(url);
+        IndexEntry indexEntry = markRead(key);
+        if (indexEntry == null) {
+            return null;
+        }
+
+        try {
+            return readFully(getEntryFile(key));
+        } catch (IOException e) {
+            Log.w(TAG, "Error while reading cached bitmap for " + url, e);
+            synchronized (this) {
+                // The entry may have been written again meanwhile, and then
+                // the new one is kept
+                if (entries.get(key) == indexEntry) {
+                    removeEntry(key);
+                }
+            }
+            return null;
+        }
+
+    }
+
+    /**
+     * It records an access to the entry key, if it's in the cache.
+     * 
+     * @return the index entry of the entry key, or null if it's not in the
+     *         cache
+     */
+    private synchronized IndexEntry markRead(String key) {
+        if (!ensureOpen()) {
+            return null;
+        }
+        IndexEntry indexEntry = entries.get(key);
+        if (indexEntry != null) {
+            appendToJournal(READ + ' ' + key);
+        }
+        return indexEntry;
+    }
+
+    /**
+     * It returns the encoded bitmap referred by the URL string along with its
+     * validators, or null if it is not found. The entry is returned even if
+     * it's stale, so it can be revalidated and still be used if the server
+     * cannot be reached.
+     * 
+     * @param url
+     *            key used to retrieve the encoded bitmap from the cache
+     */
+    public Entry getEntry(String url) {
+
+        byte[] data = get(url);
+        if (data == null) {
+            return null;
+        }
+
+        // Entries stored without metadata are stale, but can not be
+        // revalidated
+        String[] meta = readMeta(hashKey(url));
+        if (meta == null) {
+            return new Entry(data, null, null, true);
+        }
+        boolean stale;
+        try {
+            stale = System.currentTimeMillis() - Long.parseLong(meta[0]) > timeToLiveMillis;
+        } catch (NumberFormatException e) {
+            stale = true;
+        }
+        return new Entry(data, emptyToNull(meta[1]), emptyToNull(meta[2]), stale);
+
+    }
+
+    /**
+     * It stores the encoded bitmap referred by the URL string, without
+     * validators. For further information @see put(String, byte[], String,
+     * String)
+     */
+    public void put(String url, byte[] data) {
+        put(url, data, null, null);
+    }
+
+    /**
+     * It stores the encoded bitmap referred by the URL string, along with the
+     * validators received with it. When the budget is exceeded, the
+     * least-recently accessed entries are deleted.
+     * 
+     * @param url
+     *            key to refer the entry data
+     * @param data
+     *            encoded bitmap to be stored in the cache
+     * @param eTag
+     *            value of the ETag header received with the data, or null
+     * @param lastModified
+     *            value of the Last-Modified header received with the data, or
+     *            null
+     */
+    public void put(String url, byte[] data, String eTag, String lastModified) {
+
+        if (data == null || !isOpen()) {
+            return;
+        }
+
+        String key = hashKey(url);
+
+        // Writing into temporary files first avoids leaving a truncated entry
+        // behind if the process dies in the middle of the write, and lets
+        // other threads use the cache meanwhile
+        File tmpFile = writeTmpFile(key, data);
+        if (tmpFile == null) {
+            return;
+        }
+        File tmpMetaFile = writeTmpMeta(key, eTag, lastModified);
+
+        synchronized (this) {
+
+            if (!tmpFile.renameTo(getEntryFile(key))) {
+                Log.w(TAG, "Unable to rename " + tmpFile);
+                tmpFile.delete();
+                deleteTmpFile(tmpMetaFile);
+                return;
+            }
+            moveMeta(key, tmpMetaFile);
+
+            IndexEntry previous = entries.put(key, new IndexEntry(data.length));
+            if (previous != null) {
+                size -= previous.size;
+            }
+            size += data.length;
+            appendToJournal(CLEAN + ' ' + key + ' ' + data.length);
+
+            trimToSize(MAX_SIZE);
+        }
+
+    }
+
+    /**
+     * It restarts the time-to-live of the encoded bitmap referred by the URL
+     * string, keeping its data and validators. It shall be called when the
+     * server tells the entry was not modified.
+     */
+    public void refresh(String url) {
+
+        String key = hashKey(url);
+        if (!isOpen()) {
+            return;
+        }
+
+        String[] meta = readMeta(key);
+        File tmpMetaFile = meta == null ? writeTmpMeta(key, null, null) : writeTmpMeta(key,
+                emptyToNull(meta[1]), emptyToNull(meta[2]));
+
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                deleteTmpFile(tmpMetaFile);
+                return;
+            }
+            moveMeta(key, tmpMetaFile);
+            appendToJournal(READ + ' ' + key);
+        }
+
+    }
+
+    /**
+     * It deletes all entries and the journal.
+     */
+    public synchronized void clear() {
+        closeQuietly(journalWriter);
+        journalWriter = null;
+        entries.clear();
+        size = 0;
+        redundantOpCount = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * It returns how many bytes are currently held by the entries.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    private synchronized boolean isOpen() {
+        return ensureOpen();
+    }
+
+    /**
+     * It opens the journal file, replaying all operations recorded there to
+     * restore the entries and their access order. Entries without a file are
+     * discarded. If the journal can not be replayed, the entries are restored
+     * from the files found in the cache directory instead. It must be called
+     * while holding the lock of the cache.
+     */
+    private boolean ensureOpen() {
+
+        if (journalWriter != null) {
+            return true;
+        }
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.w(TAG, "Unable to create cache directory " + directory);
+            return false;
+        }
+
+        File journalFile = new File(directory, JOURNAL_FILE);
+        if (journalFile.exists()) {
+            try {
+                readJournal(journalFile);
+            } catch (IOException e) {
+                Log.w(TAG, "Restoring entries from files of corrupted journal " + journalFile, e);
+                readEntryFiles();
+            }
+        }
+
+        // Dropping temporary files left behind by writes that never finished
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(TMP_SUFFIX)) {
+                    file.delete();
+                }
+            }
+        }
+
+        // Dropping entries whose file is gone (e.g. the system cleared the
+        // cache directory)
+        Iterator<Map.Entry<String, IndexEntry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, IndexEntry> entry = iterator.next();
+            if (!getEntryFile(entry.getKey()).exists()) {
+                size -= entry.getValue().size;
+                iterator.remove();
+            }
+        }
+
+        try {
+            rebuildJournal();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write journal " + journalFile, e);
+            return false;
+        }
+
+        trimToSize(MAX_SIZE);
+        return true;
+
+    }
+
+    /**
+     * It replays the journal lines. The last line may have been cut by a
+     * process killed while appending it, so it's skipped if it can not be
+     * read. Any other line that can not be read fails the whole journal.
+     */
+    private void readJournal(File journalFile) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(journalFile));
+        try {
+            String line;
+            String unreadLine = null;
+            while ((line = reader.readLine()) != null) {
+                if (unreadLine != null) {
+                    throw new IOException("Unexpected journal line : " + unreadLine);
+                }
+                if (!replayJournalLine(line)) {
+                    unreadLine = line;
+                }
+            }
+            if (unreadLine != null) {
+                Log.w(TAG, "Skipping truncated journal line : " + unreadLine);
+            }
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * It applies the operation of the entry journal line to the entries.
+     * 
+     * @return false if the line could not be read
+     */
+    private boolean replayJournalLine(String line) {
+        String[] parts = line.split(" ");
+        if (parts.length == 3 && CLEAN.equals(parts[0])) {
+            long entrySize;
+            try {
+                entrySize = Long.parseLong(parts[2]);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            IndexEntry previous = entries.put(parts[1], new IndexEntry(entrySize));
+            if (previous != null) {
+                size -= previous.size;
+            }
+            size += entrySize;
+        } else if (parts.length == 2 && READ.equals(parts[0])) {
+            entries.get(parts[1]);
+        } else if (parts.length == 2 && REMOVE.equals(parts[0])) {
+            IndexEntry previous = entries.remove(parts[1]);
+            if (previous != null) {
+                size -= previous.size;
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * It restores the entries from the files found in the cache directory,
+     * from the least-recently to the most-recently written one, as the access
+     * order is lost along with the journal.
+     */
+    private void readEntryFiles() {
+        entries.clear();
+        size = 0;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+
+            @Override
+            public int compare(File a, File b) {
+                long aModified = a.lastModified();
+                long bModified = b.lastModified();
+                return aModified < bModified ? -1 : (aModified == bModified ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.equals(JOURNAL_FILE) || name.equals(JOURNAL_FILE_TMP)
+                    || name.endsWith(META_SUFFIX) || name.endsWith(TMP_SUFFIX)) {
+                continue;
+            }
+            entries.put(name, new IndexEntry(file.length()));
+            size += file.length();
+        }
+    }
+
+    /**
+     * It writes a new journal holding only the current entries from the
+     * least-recently to the most-recently accessed one.
+     */
+    private void rebuildJournal() throws IOException {
+
+        closeQuietly(journalWriter);
+        journalWriter = null;
+
+        File journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        Writer writer = new BufferedWriter(new FileWriter(journalFileTmp));
+        try {
+            for (Map.Entry<String, IndexEntry> entry : entries.entrySet()) {
+                writer.write(CLEAN + ' ' + entry.getKey() + ' ' + entry.getValue().size + '\n');
+            }
+        } finally {
+            writer.close();
+        }
+
+        File journalFile = new File(directory, JOURNAL_FILE);
+        if (!journalFileTmp.renameTo(journalFile)) {
+            throw new IOException("Unable to rename " + journalFileTmp);
+        }
+
+        journalWriter = new BufferedWriter(new FileWriter(journalFile, true));
+        redundantOpCount = 0;
+
+    }
+
+    private void appendToJournal(String line) {
+
+        if (journalWriter == null) {
+            return;
+        }
+
+        try {
+            journalWriter.write(line);
+            journalWriter.write('\n');
+            journalWriter.flush();
+            if (++redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                    && redundantOpCount >= entries.size()) {
+                rebuildJournal();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Error while writing journal", e);
+        }
+
+    }
+
+    /**
+     * It deletes the least-recently accessed entries until the entry budget
+     * is satisfied.
+     */
+    private void trimToSize(long maxSize) {
+        while (size > maxSize && !entries.isEmpty()) {
+            removeEntry(entries.keySet().iterator().next());
+        }
+    }
+
+    private void removeEntry(String key) {
+        IndexEntry indexEntry = entries.remove(key);
+        if (indexEntry != null) {
+            size -= indexEntry.size;
+        }
+        getEntryFile(key).delete();
+        getMetaFile(key).delete();
+        appendToJournal(REMOVE + ' ' + key);
+    }
+
+    private File getEntryFile(String key) {
+        return new File(directory, key);
+    }
+
+    private File getMetaFile(String key) {
+        return new File(directory, key + META_SUFFIX);
+    }
+
+    /**
+     * It writes the entry data into a new temporary file, which is returned,
+     * or null if it could not be written.
+     */
+    private File writeTmpFile(String key, byte[] data) {
+        File tmpFile = null;
+        OutputStream outputStream = null;
+        try {
+            tmpFile = File.createTempFile(key, TMP_SUFFIX, directory);
+            outputStream = new FileOutputStream(tmpFile);
+            outputStream.write(data);
+            outputStream.close();
+            outputStream = null;
+            return tmpFile;
+        } catch (IOException e) {
+            Log.w(TAG, "Error while caching bitmap " + key, e);
+            deleteTmpFile(tmpFile);
+            return null;
+        } finally {
+            closeQuietly(outputStream);
+        }
+    }
+
+    /**
+     * The metadata file has three lines : the time the entry was downloaded
+     * or revalidated, its ETag and its Last-Modified, the last two being empty
+     * if there is none. Headers can not hold line breaks, so no escaping is
+     * needed. It's written into a new temporary file, which is returned, or
+     * null if it could not be written.
+     */
+    private File writeTmpMeta(String key, String eTag, String lastModified) {
+        File tmpFile = null;
+        Writer writer = null;
+        try {
+            tmpFile = File.createTempFile(key, TMP_SUFFIX, directory);
+            writer = new BufferedWriter(new FileWriter(tmpFile));
+            writer.write(System.currentTimeMillis() + "\n" + nullToEmpty(eTag) + '\n'
+                    + nullToEmpty(lastModified) + '\n');
+            writer.close();
+            writer = null;
+            return tmpFile;
+        } catch (IOException e) {
+            Log.w(TAG, "Error while writing metadata of " + key, e);
+            deleteTmpFile(tmpFile);
+            return null;
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    /**
+     * It replaces the metadata file of the entry key by the entry temporary
+     * one. Without a temporary file, the entry is left without metadata. It
+     * must be called while holding the lock of the cache.
+     */
+    private void moveMeta(String key, File tmpMetaFile) {
+        if (tmpMetaFile == null || !tmpMetaFile.renameTo(getMetaFile(key))) {
+            deleteTmpFile(tmpMetaFile);
+            getMetaFile(key).delete();
+        }
+    }
+
+    private static void deleteTmpFile(File tmpFile) {
+        if (tmpFile != null) {
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * It returns the three lines of the metadata file of the entry key, or
+     * null if it could not be read.
+     */
+    private String[] readMeta(String key) {
+        File metaFile = getMetaFile(key);
+        if (!metaFile.exists()) {
+            return null;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(metaFile));
+            String[] meta = new String[3];
+            for (int i = 0; i < meta.length; i++) {
+                meta[i] = reader.readLine();
+                if (meta[i] == null) {
+                    return null;
+                }
+            }
+            return meta;
+        } catch (IOException e) {
+            Log.w(TAG, "Error while reading metadata of " + key, e);
+            return null;
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.length() == 0 ? null : value;
+    }
+
+    /**
+     * It returns the MD5 hash of the entry URL in hexadecimal, which is safe
+     * to be used as a file name.
+     */
+    private static String hashKey(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return String.valueOf(url.hashCode());
+        } catch (IOException e) {
+            return String.valueOf(url.hashCode());
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+            return outputStream.toByteArray();
+        } finally {
+            closeQuietly(inputStream);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing else to be done
+            }
+        }
+    }
+
+}
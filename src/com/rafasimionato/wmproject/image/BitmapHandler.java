@@ -1,17 +1,24 @@
 package com.rafasimionato.wmproject.image;
 
 import android.graphics.Bitmap;
-import android.util.Log;
 import android.widget.ImageView;
 
 import com.rafasimionato.wmproject.R;
 import com.rafasimionato.wmproject.data.ContactViewHolder;
+import com.rafasimionato.wmproject.util.ListMetrics;
+import com.rafasimionato.wmproject.util.Tracer;
 
 /**
  * This class handles how to set bitmaps for an entry ImageView or
  * ContactViewHolder object. It can be retrieved from the BitmapCache or
  * download based on a entry URL.
  * 
+ * Bitmaps are decoded and cached for the size of the image view where they
+ * are set. For further information @see BitmapDecoder.
+ * 
+ * Bitmaps are set every time a row gets bound, so nothing is logged here.
+ * Timing events are traced instead { @see Tracer }.
+ * 
  * When handling concurrency is required, it also handles canceling no longer
  * needed tasks before starting new download tasks. Nice ideas on handling
  * concurrency came from the following post on the Android developers blog :
@@ -21,7 +28,25 @@ import com.rafasimionato.wmproject.data.ContactViewHolder;
  */
 public class BitmapHandler {
 
-    private static final String TAG = "BitmapHandler";
+    // It tells if images without transparency shall be decoded with 2 bytes
+    // per pixel instead of 4
+    private final boolean preferRgb565;
+
+    /**
+     * It creates a bitmap handler that decodes bitmaps in full quality.
+     */
+    public BitmapHandler() {
+        this(false);
+    }
+
+    /**
+     * @param preferRgb565
+     *            if images without transparency shall be decoded with 2 bytes
+     *            per pixel, which is usually good enough for small pictures
+     */
+    public BitmapHandler(boolean preferRgb565) {
+        this.preferRgb565 = preferRgb565;
+    }
 
     /**
      * This is to set a bitmap not specifically related to a view holder.
@@ -34,22 +59,24 @@ public class BitmapHandler {
     public void setBitmap(String url, ImageView imageView) {
 
         if (url == null) {
-            Log.d(TAG, "Setting default bitmap as provided url is null.");
             setDefaultBitmap(imageView);
             return;
         }
 
         // First check if the required bitmap was already cached
-        Bitmap bitmap = BitmapCache.getInstance().getBitmap(url);
+        BitmapDecoder decoder = getDecoder(imageView);
+        Bitmap bitmap = BitmapCache.getInstance().getBitmap(decoder.getCacheKey(url));
 
         if (bitmap == null) {
-            // If its not in the cache, start a new download task
-            Log.d(TAG, "Starting download bitmap : " + url);
-            BitmapHandlerDownloadTask task = new BitmapHandlerDownloadTask(url, imageView);
-            task.execute();
+            // If its not in the cache, start a new download task, unless the
+            // URL failed recently
+            if (NetworkPolicy.getInstance(imageView.getContext()).isBackedOff(url)) {
+                setDefaultBitmap(imageView);
+            } else {
+                BitmapHandlerDownloadTask.request(url, decoder, imageView);
+            }
         } else {
-            Log.d(TAG, "Getting bitmap for URL " + url + " from cache");
-            imageView.setImageBitmap(bitmap);
+            showBitmap(imageView, bitmap);
         }
 
     }
@@ -75,60 +102,111 @@ public class BitmapHandler {
      */
     public void setBitmap(int position, String url, ContactViewHolder vHolder) {
 
+        long start = Tracer.ENABLED ? Tracer.begin() : 0;
+
         ImageView imageView = vHolder.getPicture();
 
         if (url == null) {
-            Log.d(TAG, "Setting default bitmap @ position " + position
-                    + " as provided url is null.");
             cancelDownloadTask(vHolder);
             setDefaultBitmap(imageView);
             imageView.setTag(null);
+            ListMetrics.countBitmapBind(false);
+            if (Tracer.ENABLED) {
+                Tracer.end(Tracer.EVENT_SET_BITMAP_DEFAULT, position, start);
+            }
             return;
         }
 
-        cancelLowPriorityDownload(position, url, vHolder);
+        BitmapDecoder decoder = getDecoder(imageView);
+        String cacheKey = decoder.getCacheKey(url);
+
+        cancelLowPriorityDownload(position, cacheKey, vHolder);
 
         // First check if the required bitmap was already cached
-        Bitmap bitmap = BitmapCache.getInstance().getBitmap(url);
+        Bitmap bitmap = BitmapCache.getInstance().getBitmap(cacheKey);
 
-        if (bitmap == null) {
+        if (bitmap == null && NetworkPolicy.getInstance(imageView.getContext()).isBackedOff(url)) {
+            // The URL failed recently, so it's not requested again yet
+            cancelDownloadTask(vHolder);
+            setDefaultBitmap(imageView);
+            imageView.setTag(null);
+            ListMetrics.countBitmapBind(false);
+            if (Tracer.ENABLED) {
+                Tracer.end(Tracer.EVENT_SET_BITMAP_DEFAULT, position, start);
+            }
+        } else if (bitmap == null) {
             // If its not in the cache, start a new download task
-            Log.d(TAG, "Starting download bitmap @ position " + position + " : " + url);
             setDefaultBitmap(imageView);
-            BitmapHandlerDownloadTask task = new BitmapHandlerDownloadTask(position, url, vHolder);
+            BitmapHandlerDownloadTask task = BitmapHandlerDownloadTask.request(position, url,
+                    decoder, vHolder);
             vHolder.setBitmapDownloadTaskRef(task);
-            task.execute();
+            ListMetrics.countBitmapBind(false);
+            if (Tracer.ENABLED) {
+                Tracer.end(Tracer.EVENT_SET_BITMAP_DOWNLOAD, position, start);
+            }
         } else {
-            Log.d(TAG, "Getting bitmap from cache @ position " + position);
             vHolder.setBitmapDownloadTaskRef(null);
-            imageView.setImageBitmap(bitmap);
+            showBitmap(imageView, bitmap);
             imageView.setTag(null);
+            ListMetrics.countBitmapBind(true);
+            if (Tracer.ENABLED) {
+                Tracer.end(Tracer.EVENT_SET_BITMAP_CACHED, position, start);
+            }
         }
 
     }
 
+    /**
+     * It returns the decoder used by this handler for bitmaps set to the entry
+     * image view. On constrained links, its size is smaller than the image
+     * view. For further information @see NetworkPolicy.
+     */
+    public BitmapDecoder getDecoder(ImageView imageView) {
+        BitmapDecoder decoder = BitmapDecoder.forImageView(imageView, preferRgb565);
+        int size = NetworkPolicy.getInstance(imageView.getContext()).getAvatarSize(
+                decoder.getSize());
+        return size == decoder.getSize() ? decoder : decoder.withSize(size);
+    }
+
     /**
      * Sets the default bitmap to the entry image view.
      */
     private void setDefaultBitmap(ImageView imageView) {
         imageView.setImageDrawable(imageView.getContext().getResources()
                 .getDrawable(R.drawable.list_image_0));
+        BitmapPool.getInstance().setDisplayed(imageView, null);
+    }
+
+    /**
+     * Sets the entry bitmap to the entry image view. Every bitmap handled by
+     * this class shall be set through this method, so the bitmap pool knows
+     * it's being shown and does not reuse its memory.
+     */
+    static void showBitmap(ImageView imageView, Bitmap bitmap) {
+        BitmapPool.getInstance().setDisplayed(imageView, bitmap);
+        imageView.setImageBitmap(bitmap);
+        ListMetrics.markBitmapShown();
     }
 
     /**
      * It cancels any previous task thrown for the entry view holder considering
      * the current URL image to be set. If there is already a task in place to
-     * download an image from the same URL address, we let it goes.
+     * download an image from the same URL address (and for the same size,
+     * which is what the cache key tells), we let it goes. As tasks
+     * may be shared by many waiters, the view holder only detaches itself from
+     * the task, which is really cancelled when nobody else waits for it.
      */
-    private void cancelLowPriorityDownload(int position, String url, ContactViewHolder vHolder) {
+    private void cancelLowPriorityDownload(int position, String cacheKey,
+            ContactViewHolder vHolder) {
         BitmapHandlerDownloadTask taskRef = vHolder.getBitmapDownloadTaskRef();
         if (taskRef != null) {
-            String bitmapUrl = taskRef.getPictureUrl();
-            if ((bitmapUrl == null) || (!bitmapUrl.equals(url))) {
-                Log.d(TAG, "Cancelling low priority BitmapHandlerDownloadTask @ position "
-                        + taskRef.getPosition() + ". Current position on focus is " + position);
+            String bitmapCacheKey = taskRef.getCacheKey();
+            if ((bitmapCacheKey == null) || (!bitmapCacheKey.equals(cacheKey))) {
+                if (Tracer.ENABLED) {
+                    Tracer.mark(Tracer.EVENT_DOWNLOAD_CANCELLED, taskRef.getPosition(vHolder));
+                }
                 vHolder.setBitmapDownloadTaskRef(null);
-                taskRef.cancel(true);
+                taskRef.detach(vHolder);
             }
         }
     }
@@ -139,9 +217,11 @@ public class BitmapHandler {
     private void cancelDownloadTask(ContactViewHolder vHolder) {
         BitmapHandlerDownloadTask taskRef = vHolder.getBitmapDownloadTaskRef();
         if (taskRef != null) {
-            Log.d(TAG, "Cancelling BitmapHandlerDownloadTask @ position " + taskRef.getPosition());
+            if (Tracer.ENABLED) {
+                Tracer.mark(Tracer.EVENT_DOWNLOAD_CANCELLED, taskRef.getPosition(vHolder));
+            }
             vHolder.setBitmapDownloadTaskRef(null);
-            taskRef.cancel(true);
+            taskRef.detach(vHolder);
         }
     }
 
@@ -1,56 +1,251 @@
 package com.rafasimionato.wmproject.image;
 
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 
+import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.net.http.AndroidHttpClient;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.ImageView;
 
+import com.rafasimionato.wmproject.R;
 import com.rafasimionato.wmproject.data.ContactViewHolder;
+import com.rafasimionato.wmproject.util.Tracer;
 
 /**
  * This class implements an asynchronous task to download required bitmaps.
- * After downloading the bitmap, it will be cached and set to the entry image
- * view. If handling concurrency is required, it checks if the entry view holder
- * stills refer the same data when requesting the download.
+ * Before going to the network, it looks for the encoded bitmap in the disk
+ * cache { @see BitmapDiskCache } and every bitmap downloaded is stored there.
+ * After getting the bitmap, it will be cached and set to the entry image view.
+ * If handling concurrency is required, it checks if the entry view holder stills
+ * refer the same data when requesting the download.
+ * 
+ * The bitmap is decoded for the size of the image view that requested it
+ * { @see BitmapDecoder }, and it's cached under a key that includes that size.
+ * The same size is requested to the image server { @see AvatarSize }, unless
+ * the picture is already in the disk cache with a larger size, which is then
+ * scaled down instead of downloaded again.
+ * 
+ * Once an entry of the disk cache is stale, it's decoded and shown at once,
+ * and then revalidated with a conditional request using the validators stored
+ * with it. Only when the server sends a new bitmap is it decoded and set to
+ * the image views again. When the server answers it was not modified, only
+ * the freshness of the entry is restarted. If the server cannot be reached,
+ * the stale bitmap already shown is kept.
+ * 
+ * There is only one task in flight for each URL and size. When the same bitmap
+ * is requested again before the first download gets finished, the new image
+ * view or view holder just waits for the task already in flight. The task is only
+ * cancelled when all of its waiters have cancelled it. Please @see request and
+ * detach methods.
+ * 
+ * Cancelling a task really stops it: the http request in flight is aborted, so
+ * the rest of the response is never received, and the bitmap is not decoded.
+ * The bytes not received thanks to that are counted, from the content length
+ * of the response or else from the size of the revalidated cached entry.
+ * Aborted responses of unknown length are counted apart. Please @see
+ * getBytesSavedByCancellation and getUnknownLengthAbortCount.
+ * 
+ * On slow networks, when the bitmap is not in the disk cache at all, a tiny
+ * thumbnail { @see AvatarSize.THUMBNAIL_SIZE } is downloaded in a thumbnail
+ * thread at the same time as the bitmap with the required size, and shown
+ * scaled up as soon as it arrives. The bitmap download does not wait for the
+ * thumbnail, and once the bitmap is downloaded, a thumbnail still in flight
+ * is aborted. It's enabled when the average download time exceeds the
+ * image_progressive_download_millis resource.
+ * 
+ * Downloads follow the network policy { @see NetworkPolicy } : while the device
+ * is offline, or when the URL failed recently, bitmaps are only served from
+ * the disk cache, even if stale. The throughput of each download is reported
+ * to the policy, and so are the URLs answered with an error status or with a
+ * bitmap that cannot be decoded.
+ * 
+ * Tasks run in the bitmap loader executor { @see BitmapLoaderExecutor }, so
+ * many bitmaps are downloaded at the same time and the most recent requests
+ * are served first. Each task runs in two stages : the disk cache is read in
+ * a disk thread, where the bitmaps found are decoded right away, and only the
+ * bitmaps to be downloaded are queued in a network thread. Downloads wait
+ * while the network is paused, but reading the disk cache does not.
+ * 
+ * Bitmaps may also be prefetched, before any view waits for them, so they are
+ * already cached when their rows get bound. A prefetch task is not cancelled
+ * when its waiters detach, but only when the prefetch itself is cancelled.
+ * When a view starts waiting for a prefetch task that is still queued in the
+ * prefetch thread, the task is moved to the network threads, so the view does
+ * not wait behind other prefetches. Please @see prefetch. The time taken by
+ * each download is measured, so the prefetcher knows how far ahead it shall
+ * look. Please @see getAverageDownloadMillis.
+ * 
+ * Nothing is logged on the UI thread for each request, as it's called while
+ * binding rows. Timing events are traced instead { @see Tracer }.
+ * 
+ * All static methods shall be called from the UI thread.
  */
-public class BitmapHandlerDownloadTask extends AsyncTask<Void, Void, Bitmap> {
+public class BitmapHandlerDownloadTask extends AsyncTask<Void, Bitmap, Bitmap> {
 
     private static final String TAG = "BitmapHandlerDownloadTask";
 
+    // Tasks in flight for each cache key. It's only accessed from the UI thread
+    private static final HashMap<String, BitmapHandlerDownloadTask> inFlightTasks =
+            new HashMap<String, BitmapHandlerDownloadTask>();
+
+    // Bytes not received because the tasks downloading them were cancelled
+    private static final AtomicLong bytesSavedByCancellation = new AtomicLong();
+
+    // Cancelled downloads whose length was unknown, so their bytes not
+    // received could not be counted
+    private static final AtomicInteger unknownLengthAbortCount = new AtomicInteger();
+
+    // Download time assumed before any download is measured
+    private static final long INITIAL_DOWNLOAD_MILLIS = 300;
+
+    // Smoothed download time, like the round trip time estimated by TCP. It's
+    // guarded by the class object
+    private static long averageDownloadMillis = INITIAL_DOWNLOAD_MILLIS;
+
+    // This is what a task needs to set the bitmap once it's downloaded. The
+    // position is stored to check when the task gets finished if the entry
+    // ImageView reference stills valid for the task purposes
+    private static final class BitmapTarget {
+
+        final int position;
+        final WeakReference<ImageView> imageViewReference;
+        final ContactViewHolder vHolder;
+
+        BitmapTarget(int position, ImageView imageView, ContactViewHolder vHolder) {
+            this.position = position;
+            this.imageViewReference = new WeakReference<ImageView>(imageView);
+            this.vHolder = vHolder;
+        }
+    }
+
     // Address for the bitmap being download by this task
     private final String pictureUrl;
 
-    // This is to check when the task gets finished if the entry ImageView
-    // reference stills valid for the task purposes
-    private final int position;
-    private final WeakReference<ImageView> imageViewReference;
+    // Address for the bitmap with the size requested to the image server,
+    // also used as key in the disk cache
+    private final String sizedPictureUrl;
+
+    // It decodes the bitmap for the size required by the waiters
+    private final BitmapDecoder decoder;
+
+    // Key for the decoded bitmap in the cache and in the tasks in flight
+    private final String cacheKey;
+
+    // Everyone waiting for the bitmap being download by this task. It's only
+    // accessed from the UI thread
+    private final ArrayList<BitmapTarget> targets = new ArrayList<BitmapTarget>();
+
+    // Second tier of the cache, checked off the UI thread before downloading
+    private final BitmapDiskCache diskCache;
+
+    // Threads where this task is downloaded and decoded
+    private final BitmapLoaderExecutor loaderExecutor;
+
+    // Http client shared by all tasks
+    private final BitmapHttpClient httpClient;
+
+    // It tells when the network shall not be used
+    private final NetworkPolicy networkPolicy;
 
-    private final ContactViewHolder vHolder;
+    // Requests in flight for the bitmap and for its thumbnail, kept so they
+    // can be aborted from the UI thread when this task gets cancelled
+    private volatile HttpGet currentRequest;
+    private volatile HttpGet thumbnailRequest;
+
+    // It tells if the bitmap download is over, so the thumbnail is no longer
+    // needed
+    private volatile boolean bitmapDownloaded = false;
+
+    // It tells if the bitmap is being prefetched. It's only accessed from the
+    // UI thread
+    private boolean prefetched = false;
+
+    // It tells if a thumbnail shall be shown while the bitmap is downloaded,
+    // unless the bitmap is downloaded by the prefetch thread
+    private final boolean progressive;
+
+    // It tells if the download is queued, or shall be queued, in the prefetch
+    // executor instead of the network one, and the runnable queued there once
+    // the disk cache is read. They're guarded by this task object
+    private boolean onPrefetchExecutor;
+    private Runnable queuedDownload = null;
+
+    // Result of reading the disk cache : the encoded bitmap to be decoded, the
+    // entry for the required size even if stale, and if the bitmap shall be
+    // downloaded. They're set by the disk stage, before the download is queued
+    private byte[] diskData = null;
+    private BitmapDiskCache.Entry cachedEntry = null;
+    private boolean downloadRequired = false;
+
+    // Stale entry decoded by the disk stage, shown while it's revalidated
+    private Bitmap staleBitmap = null;
+
+    // Last bitmap shown while waiting for the final one, either a thumbnail
+    // or the stale bitmap. It's only accessed from the UI thread
+    private Bitmap progressBitmap = null;
+
+    // Thumbnail or stale bitmap decoded by this task, kept out of the bitmap
+    // pool until the task is done. They're guarded by this task object
+    private Bitmap retainedBitmap = null;
+    private boolean done = false;
+
+    private BitmapHandlerDownloadTask(String url, BitmapDecoder decoder, Context context,
+            boolean prefetch) {
+        pictureUrl = url;
+        sizedPictureUrl = AvatarSize.toUrl(url, decoder.getSize());
+        this.decoder = decoder;
+        cacheKey = decoder.getCacheKey(url);
+        diskCache = BitmapDiskCache.getInstance(context);
+        loaderExecutor = BitmapLoaderExecutor.getInstance(context);
+        httpClient = BitmapHttpClient.getInstance(context);
+        networkPolicy = NetworkPolicy.getInstance(context);
+        int progressiveDownloadMillis = context.getResources().getInteger(
+                R.integer.image_progressive_download_millis);
+        progressive = progressiveDownloadMillis >= 0
+                && getAverageDownloadMillis() > progressiveDownloadMillis;
+        onPrefetchExecutor = prefetch;
+    }
 
     /**
      * This is to download a bitmap not specifically related to a view holder.
-     * In this case handling concurrency is not required.
+     * In this case handling concurrency is not required. If there is already a
+     * task in flight for the same URL, the image view waits for it instead of
+     * starting a new one.
      * 
      * @param url
      *            address for the bitmap to be download
+     * @param decoder
+     *            decoder for the size of the image view
      * @param imageView
      *            reference to the object which the new bitmap will be set
+     * 
+     * @return the task in flight for the entry URL
      */
-    public BitmapHandlerDownloadTask(String url, ImageView imageView) {
-        position = -1;
-        vHolder = null;
-        pictureUrl = url;
-        imageViewReference = new WeakReference<ImageView>(imageView);
+    public static BitmapHandlerDownloadTask request(String url, BitmapDecoder decoder,
+            ImageView imageView) {
+        BitmapHandlerDownloadTask task = getOrStartTask(url, decoder, imageView.getContext(),
+                false);
+        BitmapTarget target = new BitmapTarget(-1, imageView, null);
+        task.targets.add(target);
+        task.showProgress(target);
+        return task;
     }
 
     /**
@@ -62,32 +257,224 @@ public class BitmapHandlerDownloadTask extends AsyncTask<Void, Void, Bitmap> {
      * data now to identify if the entry view holder stills refer the same data
      * as soon as this task gets finished.
      * 
+     * If there is already a task in flight for the same URL, the view holder
+     * waits for it instead of starting a new one.
+     * 
      * @param pos
      *            refers the contact index in the list view object defined by
      *            activity_friends_list layout
      * @param url
      *            address for the bitmap to be download
+     * @param decoder
+     *            decoder for the size of the view holder image view
      * @param holder
      *            reference to view holder that requires download a new bitmap
      * 
-     * @TODO for the future, try using only the ContactViewHolder as an entry
-     *       parameter for this method
+     * @return the task in flight for the entry URL
      */
-    public BitmapHandlerDownloadTask(int pos, String url, ContactViewHolder holder) {
+    public static BitmapHandlerDownloadTask request(int pos, String url, BitmapDecoder decoder,
+            ContactViewHolder holder) {
 
-        pictureUrl = url;
-        vHolder = holder;
-        imageViewReference = new WeakReference<ImageView>(vHolder.getPicture());
+        BitmapHandlerDownloadTask task = getOrStartTask(url, decoder, holder.getPicture()
+                .getContext(), false);
 
-        // Storing the entry position in the class attribute to check again when
-        // this task gets finished
-        position = pos;
+        // A view holder waits only once for the same task, for the last
+        // position it was bound to
+        task.removeTargets(holder);
+        BitmapTarget target = new BitmapTarget(pos, holder.getPicture(), holder);
+        task.targets.add(target);
 
         // Storing the entry position in the ImageView tag. If it gets
         // overwritten until this task gets finished, that means entry view
         // holder data has changed.
-        vHolder.getPicture().setTag(pos);
+        holder.getPicture().setTag(pos);
+        task.showProgress(target);
+
+        return task;
+    }
 
+    /**
+     * This is to download a bitmap and keep it in the cache before any view
+     * waits for it. The task keeps running when the views waiting for it
+     * detach, until cancelPrefetch is called. If there is already a task in
+     * flight for the same URL, it's used as the prefetch task.
+     * 
+     * @param url
+     *            address for the bitmap to be download
+     * @param decoder
+     *            decoder for the size of the image views that will show it
+     * @param context
+     *            any context of the application
+     * 
+     * @return the task in flight for the entry URL
+     */
+    public static BitmapHandlerDownloadTask prefetch(String url, BitmapDecoder decoder,
+            Context context) {
+        BitmapHandlerDownloadTask task = getOrStartTask(url, decoder, context, true);
+        task.prefetched = true;
+        return task;
+    }
+
+    private static BitmapHandlerDownloadTask getOrStartTask(String url, BitmapDecoder decoder,
+            Context context, boolean prefetch) {
+        String cacheKey = decoder.getCacheKey(url);
+        BitmapHandlerDownloadTask task = inFlightTasks.get(cacheKey);
+        if (task == null) {
+            task = new BitmapHandlerDownloadTask(url, decoder, context, prefetch);
+            inFlightTasks.put(cacheKey, task);
+            task.start();
+        } else {
+            if (Tracer.ENABLED) {
+                Tracer.mark(Tracer.EVENT_DOWNLOAD_JOINED, -1);
+            }
+            if (!prefetch) {
+                task.leavePrefetchExecutor();
+            }
+        }
+        return task;
+    }
+
+    /**
+     * It reads the disk cache in a disk thread. The bitmap found there is
+     * decoded right away in the same thread, while the bitmap to be downloaded
+     * is queued in the network executor, or in the prefetch one. A stale
+     * bitmap is decoded and shown before its revalidation gets queued.
+     */
+    private void start() {
+        executeOnExecutor(new Executor() {
+
+            @Override
+            public void execute(final Runnable task) {
+                loaderExecutor.getDiskExecutor().execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (!isCancelled()) {
+                            downloadRequired = readDiskCache();
+                        }
+                        if (downloadRequired) {
+                            if (cachedEntry != null) {
+                                publishStaleBitmap();
+                            }
+                            queueDownload(task);
+                        } else {
+                            task.run();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private synchronized void queueDownload(Runnable task) {
+        queuedDownload = task;
+        if (onPrefetchExecutor) {
+            loaderExecutor.getPrefetchExecutor().execute(task);
+        } else {
+            loaderExecutor.getNetworkExecutor().execute(task);
+        }
+    }
+
+    private synchronized boolean isOnPrefetchExecutor() {
+        return onPrefetchExecutor;
+    }
+
+    /**
+     * A view is waiting for this task now, so the download shall not wait
+     * behind other prefetches. If it's not queued yet, it will be queued in
+     * the network executor, and if it's still queued in the prefetch executor,
+     * it's moved to the network one. A download already started is kept.
+     */
+    private synchronized void leavePrefetchExecutor() {
+        if (!onPrefetchExecutor) {
+            return;
+        }
+        if (queuedDownload == null || loaderExecutor.moveToNetworkExecutor(queuedDownload)) {
+            onPrefetchExecutor = false;
+        }
+    }
+
+    /**
+     * The entry view holder stops waiting for this task. When nobody else is
+     * waiting for it, the task is cancelled.
+     */
+    public void detach(ContactViewHolder holder) {
+        removeTargets(holder);
+        cancelIfUnused();
+    }
+
+    /**
+     * The bitmap is no longer prefetched by this task. When nobody is waiting
+     * for it, the task is cancelled.
+     */
+    public void cancelPrefetch() {
+        prefetched = false;
+        cancelIfUnused();
+    }
+
+    private void cancelIfUnused() {
+        if (targets.isEmpty() && !prefetched && getStatus() != Status.FINISHED) {
+            if (Tracer.ENABLED) {
+                Tracer.mark(Tracer.EVENT_DOWNLOAD_CANCELLED, -1);
+            }
+            removeFromInFlightTasks();
+            cancel(true);
+            abortRequest();
+        }
+    }
+
+    /**
+     * It returns how many bytes were not received because the tasks
+     * downloading them were cancelled.
+     */
+    public static long getBytesSavedByCancellation() {
+        return bytesSavedByCancellation.get();
+    }
+
+    /**
+     * It returns how many downloads were cancelled without knowing the length
+     * of their response, as for chunked responses. The bytes they saved are
+     * not counted by getBytesSavedByCancellation.
+     */
+    public static int getUnknownLengthAbortCount() {
+        return unknownLengthAbortCount.get();
+    }
+
+    /**
+     * It returns the smoothed time in milliseconds taken by the last
+     * downloads, from sending the request to receiving the whole response.
+     */
+    public static synchronized long getAverageDownloadMillis() {
+        return averageDownloadMillis;
+    }
+
+    private static synchronized void addDownloadTime(long downloadMillis) {
+        averageDownloadMillis += (downloadMillis - averageDownloadMillis) / 8;
+    }
+
+    /**
+     * Interrupting the thread does not stop a blocking read from the socket,
+     * so the request in flight is aborted as well. Aborting closes the
+     * connection, which may need to talk to the network, so it's done off the
+     * UI thread.
+     */
+    private void abortRequest() {
+        final HttpGet request = currentRequest;
+        final HttpGet thumbnail = thumbnailRequest;
+        if (request != null || thumbnail != null) {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (request != null) {
+                        request.abort();
+                    }
+                    if (thumbnail != null) {
+                        thumbnail.abort();
+                    }
+                }
+            });
+        }
     }
 
     /**
@@ -97,73 +484,337 @@ public class BitmapHandlerDownloadTask extends AsyncTask<Void, Void, Bitmap> {
         return pictureUrl;
     }
 
+    /**
+     * It returns the key for the bitmap being decoded by this task in the
+     * cache.
+     */
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
     /**
      * It returns the contact index in the list view object defined by
-     * activity_friends_list layout that this task refers to.
+     * activity_friends_list layout that the entry view holder waits this task
+     * for, or -1 if it is not waiting for it.
+     */
+    public final int getPosition(ContactViewHolder holder) {
+        for (BitmapTarget target : targets) {
+            if (target.vHolder == holder) {
+                return target.position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * It looks for the encoded bitmap in the disk cache, with the required size
+     * or any larger one. It runs in a disk thread, before doInBackground.
+     * 
+     * @return true if the bitmap shall be downloaded
      */
-    public final int getPosition() {
-        return position;
+    private boolean readDiskCache() {
+
+        cachedEntry = diskCache.getEntry(sizedPictureUrl);
+        if (cachedEntry == null) {
+            diskData = getLargerFromDiskCache();
+        } else if (!cachedEntry.stale) {
+            Log.d(TAG, "Bitmap found in disk cache : " + sizedPictureUrl);
+            diskData = cachedEntry.data;
+        }
+        if (diskData != null) {
+            return false;
+        }
+
+        if (networkPolicy.isOffline() || networkPolicy.isBackedOff(pictureUrl)) {
+            // Only the caches are used, so even a stale entry is shown
+            Log.d(TAG, "Network not used for " + sizedPictureUrl);
+            if (cachedEntry != null) {
+                diskData = cachedEntry.data;
+            }
+            return false;
+        }
+        return true;
     }
 
+    /**
+     * It decodes the bitmap found in the disk cache or, if it shall be
+     * downloaded, it downloads it first. Downloaded data is stored in the disk
+     * cache before being decoded. When a stale entry is revalidated, the stale
+     * bitmap already shown is returned unless a new one is received.
+     */
     @Override
     protected Bitmap doInBackground(Void... params) {
-        return downloadBitmap();
+
+        if (isCancelled()) {
+            return null;
+        }
+
+        byte[] data = diskData;
+        if (downloadRequired) {
+            try {
+                loaderExecutor.awaitNetwork();
+            } catch (InterruptedException e) {
+                // The task was cancelled while the network was paused
+                return null;
+            }
+            // Nobody sees the thumbnail of a prefetched bitmap
+            boolean thumbnail = progressive && cachedEntry == null && !isOnPrefetchExecutor();
+            if (thumbnail) {
+                startThumbnail();
+            }
+            data = downloadBitmap(sizedPictureUrl, cachedEntry, true);
+            if (thumbnail) {
+                stopThumbnail();
+            }
+            if (cachedEntry != null && (data == null || data == cachedEntry.data)) {
+                // Not modified, or not revalidated at all : the stale bitmap
+                // is still better than the default one
+                return isCancelled() ? null : staleBitmap;
+            }
+        }
+
+        if (data == null || isCancelled()) {
+            return null;
+        }
+
+        Bitmap bitmap = decode(decoder, data);
+        if (bitmap == null && downloadRequired && !isCancelled()) {
+            // The server answered with something that is not a bitmap
+            networkPolicy.addFailure(pictureUrl);
+        }
+        return bitmap;
+    }
+
+    /**
+     * It decodes the entry data with the entry decoder, as soon as it's
+     * allowed to, unless this task gets cancelled.
+     */
+    private Bitmap decode(BitmapDecoder decoder, byte[] data) {
+        try {
+            loaderExecutor.startDecode();
+        } catch (InterruptedException e) {
+            // The task was cancelled while waiting to decode the bitmap
+            return null;
+        }
+        try {
+            if (isCancelled()) {
+                return null;
+            }
+            return decoder.decode(data);
+        } finally {
+            loaderExecutor.finishDecode();
+        }
+    }
+
+    /**
+     * It decodes the stale entry of the disk cache, which is then shown by
+     * onProgressUpdate until it's revalidated.
+     */
+    private void publishStaleBitmap() {
+        if (isCancelled()) {
+            return;
+        }
+        staleBitmap = decode(decoder, cachedEntry.data);
+        if (staleBitmap != null && retain(staleBitmap)) {
+            publishProgress(staleBitmap);
+        }
+    }
+
+    /**
+     * It queues the thumbnail download in the thumbnail executor, so it runs
+     * while this thread downloads the bitmap.
+     */
+    private void startThumbnail() {
+        loaderExecutor.getThumbnailExecutor().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                publishThumbnail();
+            }
+        });
+    }
+
+    /**
+     * The bitmap download is over, so the thumbnail is not shown anymore, and
+     * its request is aborted if it's still in flight.
+     */
+    private void stopThumbnail() {
+        bitmapDownloaded = true;
+        HttpGet request = thumbnailRequest;
+        if (request != null) {
+            request.abort();
+        }
+    }
+
+    /**
+     * It downloads and decodes the thumbnail of the bitmap, which is then
+     * shown by onProgressUpdate, unless the bitmap was downloaded first.
+     * Thumbnails are not kept in the memory cache nor in the disk one, as they
+     * are replaced as soon as the bitmap is downloaded.
+     */
+    private void publishThumbnail() {
+        if (isCancelled() || bitmapDownloaded) {
+            return;
+        }
+        byte[] data = downloadBitmap(AvatarSize.toUrl(pictureUrl, AvatarSize.THUMBNAIL_SIZE),
+                null, false);
+        if (data == null || isCancelled() || bitmapDownloaded) {
+            return;
+        }
+        Bitmap thumbnail = decode(decoder.withSize(AvatarSize.THUMBNAIL_SIZE), data);
+        if (thumbnail != null && !bitmapDownloaded && retain(thumbnail)) {
+            publishProgress(thumbnail);
+        }
+    }
+
+    /**
+     * It keeps the entry bitmap out of the bitmap pool until this task is
+     * done, as it may still be shown to the waiters joining later. For
+     * further information @see BitmapPool.retain
+     * 
+     * @return false if this task is already done, and then the bitmap shall
+     *         not be shown
+     */
+    private synchronized boolean retain(Bitmap bitmap) {
+        if (done) {
+            return false;
+        }
+        if (retainedBitmap != null) {
+            BitmapPool.getInstance().release(retainedBitmap);
+        }
+        BitmapPool.getInstance().retain(bitmap);
+        retainedBitmap = bitmap;
+        return true;
+    }
+
+    /**
+     * This task is done, so the bitmap it retained may go into the bitmap
+     * pool once no image view shows it.
+     */
+    private synchronized boolean isDone() {
+        return done;
+    }
+
+    private synchronized void releaseRetainedBitmap() {
+        done = true;
+        if (retainedBitmap != null) {
+            BitmapPool.getInstance().release(retainedBitmap);
+            retainedBitmap = null;
+        }
+    }
+
+    /**
+     * It shows the thumbnail or the stale bitmap in the image view of each
+     * waiter. Waiters joining later get it as well. A thumbnail published
+     * once this task is done is ignored, as the bitmap is already shown.
+     */
+    @Override
+    protected void onProgressUpdate(Bitmap... bitmaps) {
+        if (isCancelled() || isDone()) {
+            return;
+        }
+        progressBitmap = bitmaps[0];
+        for (BitmapTarget target : targets) {
+            showProgress(target);
+        }
+    }
+
+    /**
+     * It shows the last bitmap published, if any, in the image view of the
+     * entry waiter, if it still refers the same position. The position is
+     * kept in the image view tag, so the bitmap is still set when it's
+     * downloaded.
+     */
+    private void showProgress(BitmapTarget target) {
+        if (progressBitmap == null) {
+            return;
+        }
+        ImageView imageView = target.imageViewReference.get();
+        if (imageView == null) {
+            return;
+        }
+        Object tag = imageView.getTag();
+        if (target.vHolder == null
+                || (tag instanceof Integer && (Integer) tag == target.position)) {
+            BitmapHandler.showBitmap(imageView, progressBitmap);
+        }
     }
 
     /**
-     * After downloading the bitmap it will be cached and set to the entry image
-     * view. If handling concurrency is required, this method will check if the
-     * entry view holder stills refer the same data when creating this task.
+     * After downloading the bitmap it will be cached and set to the image view
+     * of each waiter. If handling concurrency is required, this method will
+     * check if the entry view holder stills refer the same data when it
+     * started waiting for this task.
      */
     @Override
     protected void onPostExecute(Bitmap bitmap) {
 
+        long start = Tracer.ENABLED ? Tracer.begin() : 0;
+
+        removeFromInFlightTasks();
+
         if (isCancelled()) {
-            Log.d(TAG, "BitmapHandlerDownloadTask @ position " + getPosition()
-                    + " was previously cancelled.");
             bitmap = null;
         }
 
-        if (imageViewReference != null) {
-            ImageView imageView = imageViewReference.get();
-            if (imageView != null) {
-                if (bitmap != null) {
+        if (bitmap != null) {
+            // At this point the new bitmap is ready to be cached
+            BitmapCache.getInstance().addBitmapToCache(cacheKey, bitmap);
+        }
 
-                    // At this point the new bitmap is ready to be cached
-                    BitmapCache.getInstance().addBitmapToCache(pictureUrl, bitmap);
+        int targetCount = targets.size();
+        for (BitmapTarget target : targets) {
+            setBitmap(target, bitmap);
+        }
+        targets.clear();
+        releaseRetainedBitmap();
 
-                    // Treating the specific case when downloading a bitmap not
-                    // related to a view holder. That means handling concurrency
-                    // is not required.
-                    if (position == -1 && vHolder == null) {
-                        Log.d(TAG, "Bitmap added to cache and imageView set : " + pictureUrl);
-                        imageView.setImageBitmap(bitmap);
-                        return;
-                    }
+        if (Tracer.ENABLED) {
+            Tracer.end(Tracer.EVENT_POST_EXECUTE, targetCount, start);
+        }
 
-                    if ((Integer) imageView.getTag() != null) {
-                        // Checking if current position in the ImageView tag has
-                        // been changed since it was set when creating this task
-                        final int currentPosition = (Integer) imageView.getTag();
-                        if (currentPosition == position) {
-                            Log.d(TAG, "Bitmap @ position " + position
-                                    + " added to cache and imageView set @ same position");
-                            imageView.setImageBitmap(bitmap);
-                            imageView.setTag(null);
-                        } else {
-                            Log.d(TAG,
-                                    "Bitmap @ position "
-                                            + position
-                                            + " added to cache but imageView not set. Current position on focus is "
-                                            + currentPosition);
-                        }
-                    } else {
-                        Log.d(TAG,
-                                "Bitmap @ position "
-                                        + position
-                                        + " added to cache but setImageBitmap aborted. It was not possible to retrieve current position on focus");
+    }
+
+    @Override
+    protected void onCancelled(Bitmap bitmap) {
+        removeFromInFlightTasks();
+        targets.clear();
+        releaseRetainedBitmap();
+    }
+
+    private void setBitmap(BitmapTarget target, Bitmap bitmap) {
+
+        final int position = target.position;
+        final ContactViewHolder vHolder = target.vHolder;
+
+        ImageView imageView = target.imageViewReference.get();
+        if (imageView != null && bitmap != null) {
+
+            // Treating the specific case when downloading a bitmap not
+            // related to a view holder. That means handling concurrency
+            // is not required.
+            if (position == -1 && vHolder == null) {
+                showFinalBitmap(imageView, bitmap);
+                return;
+            }
+
+            if ((Integer) imageView.getTag() != null) {
+                // Checking if current position in the ImageView tag has
+                // been changed since it was set when creating this task
+                final int currentPosition = (Integer) imageView.getTag();
+                if (currentPosition == position) {
+                    showFinalBitmap(imageView, bitmap);
+                    imageView.setTag(null);
+                    if (Tracer.ENABLED) {
+                        Tracer.mark(Tracer.EVENT_BITMAP_SHOWN, position);
                     }
+                } else if (Tracer.ENABLED) {
+                    // The view holder is bound to another position by now
+                    Tracer.mark(Tracer.EVENT_BITMAP_STALE, position);
                 }
+            } else if (Tracer.ENABLED) {
+                // The current position of the view holder is unknown
+                Tracer.mark(Tracer.EVENT_BITMAP_STALE, position);
             }
         }
 
@@ -174,42 +825,181 @@ public class BitmapHandlerDownloadTask extends AsyncTask<Void, Void, Bitmap> {
     }
 
     /**
-     * It instantiate a http client to download the required bitmap. It also
-     * append a resizing string to the original request.
+     * It shows the entry bitmap, unless it's the stale one already shown
+     * while it was revalidated.
+     */
+    private void showFinalBitmap(ImageView imageView, Bitmap bitmap) {
+        if (bitmap != progressBitmap) {
+            BitmapHandler.showBitmap(imageView, bitmap);
+        }
+    }
+
+    private void removeTargets(ContactViewHolder holder) {
+        Iterator<BitmapTarget> iterator = targets.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().vHolder == holder) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * It returns the encoded bitmap stored in the disk cache with the smallest
+     * size larger than the required one, as the decoder scales it down anyway,
+     * or null if there is none still fresh.
      */
-    private Bitmap downloadBitmap() {
-        final AndroidHttpClient client = AndroidHttpClient.newInstance("Android");
-        final HttpGet getRequest = new HttpGet(pictureUrl + "?sz=144");
+    private byte[] getLargerFromDiskCache() {
+        for (int size : AvatarSize.getLargerSizes(decoder.getSize())) {
+            String largerPictureUrl = AvatarSize.toUrl(pictureUrl, size);
+            BitmapDiskCache.Entry entry = diskCache.getEntry(largerPictureUrl);
+            if (entry != null && !entry.stale) {
+                Log.d(TAG, "Larger bitmap found in disk cache : " + largerPictureUrl);
+                return entry.data;
+            }
+        }
+        return null;
+    }
+
+    private void removeFromInFlightTasks() {
+        if (inFlightTasks.get(cacheKey) == this) {
+            inFlightTasks.remove(cacheKey);
+        }
+    }
+
+    /**
+     * It uses the shared http client to download the bitmap referred by the
+     * entry URL, reusing any connection kept alive by previous downloads. The
+     * encoded bitmap is stored in the disk cache as it was received, along
+     * with its validators. Only measured downloads, the ones of the bitmap
+     * with the required size, are stored and have their time added to the
+     * average download time and to the throughput. Thumbnails are neither,
+     * and their request is kept apart from the bitmap one, as both are in
+     * flight at the same time.
+     * 
+     * If the cached entry has validators, the request is conditional.
+     * When the server answers the bitmap was not modified, the freshness of
+     * the cached entry is restarted and its data is returned.
+     * 
+     * The response is read only while this task is not cancelled. Once it
+     * gets cancelled, the request is aborted instead of consuming the rest of
+     * the response, and null is returned.
+     */
+    private byte[] downloadBitmap(String url, BitmapDiskCache.Entry cachedEntry,
+            boolean measured) {
+        final HttpClient client = httpClient.getHttpClient();
+        final HttpGet getRequest = new HttpGet(url);
+        if (cachedEntry != null) {
+            if (cachedEntry.eTag != null) {
+                getRequest.addHeader("If-None-Match", cachedEntry.eTag);
+            }
+            if (cachedEntry.lastModified != null) {
+                getRequest.addHeader("If-Modified-Since", cachedEntry.lastModified);
+            }
+        }
+        setRequest(measured, getRequest);
+        long contentLength = -1;
+        long bytesRead = 0;
+        long start = SystemClock.uptimeMillis();
         try {
+            if (isCancelled()) {
+                // Cancelled before the request was visible to abortRequest
+                return null;
+            }
             HttpResponse response = client.execute(getRequest);
             final int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == HttpStatus.SC_NOT_MODIFIED && cachedEntry != null) {
+                Log.d(TAG, "Bitmap not modified : " + url);
+                diskCache.refresh(url);
+                return cachedEntry.data;
+            }
             if (statusCode != HttpStatus.SC_OK) {
-                Log.w("TAG", "Error " + statusCode + " while retrieving bitmap from " + pictureUrl);
+                Log.w(TAG, "Error " + statusCode + " while retrieving bitmap from "
+                        + url);
+                getRequest.abort();
+                if (measured && statusCode >= HttpStatus.SC_BAD_REQUEST) {
+                    networkPolicy.addFailure(pictureUrl);
+                }
                 return null;
             }
             final HttpEntity entity = response.getEntity();
             if (entity != null) {
-                InputStream inputStream = null;
-                try {
-                    inputStream = entity.getContent();
-                    final Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-                    return bitmap;
-                } finally {
-                    if (inputStream != null) {
-                        inputStream.close();
-                    }
-                    entity.consumeContent();
+                contentLength = entity.getContentLength();
+                InputStream inputStream = entity.getContent();
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream(
+                        contentLength > 0 ? (int) contentLength : 8192);
+                byte[] buffer = new byte[8192];
+                int read;
+                while (!isCancelled() && (read = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, read);
+                    bytesRead += read;
+                }
+                if (isCancelled()) {
+                    // Closing the stream would read the rest of the response
+                    // to keep the connection alive, so it's aborted instead
+                    getRequest.abort();
+                    countBytesSaved(contentLength, bytesRead, cachedEntry);
+                    return null;
                 }
+                inputStream.close();
+                byte[] data = outputStream.toByteArray();
+                if (measured) {
+                    long end = SystemClock.uptimeMillis();
+                    addDownloadTime(end - start);
+                    networkPolicy.addThroughputSample(bytesRead, start, end);
+                    networkPolicy.removeFailure(pictureUrl);
+                    diskCache.put(url, data, getHeader(response, "ETag"),
+                            getHeader(response, "Last-Modified"));
+                }
+                return data;
             }
         } catch (Exception e) {
             getRequest.abort();
-            Log.d(TAG, "Error while retrieving bitmap from " + pictureUrl);
-        } finally {
-            if (client != null) {
-                client.close();
+            if (isCancelled()) {
+                Log.d(TAG, "Download aborted : " + url);
+                countBytesSaved(contentLength, bytesRead, cachedEntry);
+            } else if (!measured && bitmapDownloaded) {
+                Log.d(TAG, "Thumbnail aborted : " + url);
+            } else {
+                // Timeouts and broken connections are not backed off, as the
+                // URL may be fine
+                Log.d(TAG, "Error while retrieving bitmap from " + url);
             }
+        } finally {
+            setRequest(measured, null);
         }
         return null;
     }
 
-}
\ No newline at end of file
+    private void setRequest(boolean measured, HttpGet request) {
+        if (measured) {
+            currentRequest = request;
+        } else {
+            thumbnailRequest = request;
+        }
+    }
+
+    private static String getHeader(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    /**
+     * It counts the bytes not received by an aborted download. When the
+     * response has no content length, as for chunked responses, the size of
+     * the cached entry being revalidated is expected instead. Otherwise the
+     * abort is counted as one of unknown length.
+     */
+    private static void countBytesSaved(long contentLength, long bytesRead,
+            BitmapDiskCache.Entry cachedEntry) {
+        long expectedLength = contentLength;
+        if (expectedLength < 0 && cachedEntry != null) {
+            expectedLength = cachedEntry.data.length;
+        }
+        if (expectedLength < 0) {
+            unknownLengthAbortCount.incrementAndGet();
+        } else if (expectedLength > bytesRead) {
+            bytesSavedByCancellation.addAndGet(expectedLength - bytesRead);
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+package com.rafasimionato.wmproject.image;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.util.Log;
+
+import com.rafasimionato.wmproject.R;
+
+/**
+ * This class implements the singleton design pattern to share one http client
+ * among all download tasks { @see BitmapHandlerDownloadTask }.
+ * 
+ * All bitmaps are downloaded from the same few hosts, so instead of creating a
+ * new client (and a new TCP and TLS handshake) for each bitmap, the client
+ * keeps a pool of connections alive to be reused by the next requests. The
+ * pool is bounded by route to the number of threads downloading bitmaps,
+ * network, prefetch and thumbnail ones { @see BitmapLoaderExecutor }, so no
+ * download waits for a connection. For further information @see KeepAliveHttpClient.
+ * 
+ * Timeouts are set by image_connection_timeout and image_socket_timeout
+ * resources. The client shall be shut down when the application is finishing
+ * and a new one is created on demand if it's required again.
+ */
+public class BitmapHttpClient {
+
+    private static final String TAG = "BitmapHttpClient";
+
+    private static BitmapHttpClient mBitmapHttpClient = null;
+
+    // Idle connections are closed after this time
+    private static final long IDLE_CONNECTION_TIMEOUT_SECONDS = 30;
+
+    private final HttpClient httpClient;
+
+    private BitmapHttpClient(HttpClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    private static HttpClient createHttpClient(int maxConnections, int connectionTimeout,
+            int socketTimeout) {
+        Log.d(TAG, "Creating http client with " + maxConnections + " connections per route");
+        return KeepAliveHttpClient.create(maxConnections, connectionTimeout, socketTimeout);
+    }
+
+    /**
+     * It returns the single instance for the bitmap http client object.
+     * 
+     * @param context
+     *            any context of the application, used to read the timeouts and
+     *            the number of network threads from the resources
+     */
+    public static synchronized BitmapHttpClient getInstance(Context context) {
+        if (mBitmapHttpClient == null) {
+            Resources resources = context.getApplicationContext().getResources();
+            mBitmapHttpClient = new BitmapHttpClient(createHttpClient(
+                    resources.getInteger(R.integer.image_network_threads)
+                            + BitmapLoaderExecutor.PREFETCH_THREADS
+                            + BitmapLoaderExecutor.THUMBNAIL_THREADS,
+                    resources.getInteger(R.integer.image_connection_timeout),
+                    resources.getInteger(R.integer.image_socket_timeout)));
+        }
+        return mBitmapHttpClient;
+    }
+
+    /**
+     * It closes all connections of the shared client, if it was created. Tasks
+     * still running with the old client fail and the next request creates a
+     * new one.
+     */
+    public static synchronized void shutdown() {
+        if (mBitmapHttpClient != null) {
+            Log.d(TAG, "Shutting down http client");
+            mBitmapHttpClient.httpClient.getConnectionManager().shutdown();
+            mBitmapHttpClient = null;
+        }
+    }
+
+    /**
+     * It returns the shared http client. It's thread safe and shall never be
+     * closed by the caller.
+     */
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * It closes the connections of the shared client that have been idle for
+     * a while, so they do not hold sockets when no bitmap is being downloaded.
+     */
+    public static synchronized void closeIdleConnections() {
+        if (mBitmapHttpClient != null) {
+            ClientConnectionManager connectionManager = mBitmapHttpClient.httpClient
+                    .getConnectionManager();
+            connectionManager.closeExpiredConnections();
+            connectionManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT_SECONDS,
+                    TimeUnit.SECONDS);
+        }
+    }
+
+}
@@ -0,0 +1,313 @@
+package com.rafasimionato.wmproject.image;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.util.Log;
+
+import com.rafasimionato.wmproject.R;
+
+/**
+ * This class implements the singleton design pattern to manage the threads
+ * used to load bitmaps, instead of running each download task one at a time in
+ * the AsyncTask serial executor.
+ * 
+ * Download tasks run in a pool with a fixed number of network threads. Pending
+ * tasks are taken from the most-recently to the least-recently queued one, as
+ * the last rows bound by the list view object are the ones the user is
+ * currently looking at, while older tasks usually refer rows already scrolled
+ * out of the screen.
+ * 
+ * Decoding bitmaps is limited separately by a number of decode permits, so the
+ * network threads waiting for data do not cause too many bitmaps to be decoded
+ * at the same time.
+ * 
+ * Each task first looks for the bitmap in the disk cache, in a few disk
+ * threads of its own { @see getDiskExecutor }. Only the tasks that must
+ * download their bitmaps are then queued in the network threads, so bitmaps
+ * found on disk are never queued behind downloads.
+ * 
+ * Bitmaps prefetched ahead of the rows being shown run in their own single
+ * thread, so they never delay the bitmaps the user is looking at. A prefetch
+ * task still queued when a row starts waiting for it is moved to the network
+ * threads. Please @see getPrefetchExecutor and moveToNetworkExecutor.
+ * 
+ * Thumbnails shown on slow networks are downloaded in a couple of threads of
+ * their own, so they never delay the download of their bitmaps. Please @see
+ * getThumbnailExecutor.
+ * 
+ * Network work may be paused, e.g. while the list view is flinging and the
+ * rows bound go out of the screen before their bitmaps could be shown. Tasks
+ * keep being queued, but no download starts until it's resumed. Only the
+ * network threads wait meanwhile, so bitmaps are still read from the disk
+ * cache. Please @see pauseNetwork.
+ * 
+ * The number of threads is set by image_network_threads and
+ * image_decode_threads resources and may be changed on-the-fly.
+ */
+public class BitmapLoaderExecutor {
+
+    private static final String TAG = "BitmapLoaderExecutor";
+
+    private static BitmapLoaderExecutor mBitmapLoaderExecutor = null;
+
+    // Time an idle network thread is kept alive
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    // Number of threads used to prefetch bitmaps
+    static final int PREFETCH_THREADS = 1;
+
+    // Number of threads used to download thumbnails on slow networks
+    static final int THUMBNAIL_THREADS = 2;
+
+    // Number of threads used to read bitmaps from the disk cache
+    private static final int DISK_THREADS = 2;
+
+    // It takes pending tasks in LIFO order, so the most recent request is the
+    // first one to be served
+    private static final class LifoBlockingDeque<E> extends LinkedBlockingDeque<E> {
+
+        private static final long serialVersionUID = -4114786347960826192L;
+
+        @Override
+        public boolean offer(E e) {
+            return super.offerFirst(e);
+        }
+
+        @Override
+        public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+            return super.offerFirst(e, timeout, unit);
+        }
+
+        @Override
+        public boolean add(E e) {
+            return offer(e);
+        }
+
+        @Override
+        public void put(E e) throws InterruptedException {
+            super.putFirst(e);
+        }
+    }
+
+    // It allows decreasing the number of permits when decode threads are
+    // reconfigured
+    private static final class ResizableSemaphore extends Semaphore {
+
+        private static final long serialVersionUID = 8465306213658426283L;
+
+        ResizableSemaphore(int permits) {
+            super(permits);
+        }
+
+        void reduce(int reduction) {
+            reducePermits(reduction);
+        }
+    }
+
+    private final ThreadPoolExecutor networkExecutor;
+    private final ThreadPoolExecutor prefetchExecutor;
+    private final ThreadPoolExecutor diskExecutor;
+    private final ThreadPoolExecutor thumbnailExecutor;
+    private final ResizableSemaphore decodePermits;
+    private int decodeThreads;
+
+    // It tells if downloads shall wait before starting. It's guarded by the
+    // executor object itself
+    private boolean networkPaused = false;
+
+    private BitmapLoaderExecutor(int networkThreads, int decodeThreads) {
+
+        Log.d(TAG, "Creating executor with " + networkThreads + " network threads and "
+                + decodeThreads + " decode threads");
+
+        networkExecutor = createExecutor(networkThreads, "BitmapLoader #");
+        prefetchExecutor = createExecutor(PREFETCH_THREADS, "BitmapPrefetcher #");
+        diskExecutor = createExecutor(DISK_THREADS, "BitmapDiskReader #");
+        thumbnailExecutor = createExecutor(THUMBNAIL_THREADS, "BitmapThumbnail #");
+
+        this.decodeThreads = decodeThreads;
+        decodePermits = new ResizableSemaphore(decodeThreads);
+    }
+
+    private static ThreadPoolExecutor createExecutor(int threads, final String threadName) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LifoBlockingDeque<Runnable>(),
+                new ThreadFactory() {
+
+                    private final AtomicInteger count = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, threadName + count.getAndIncrement());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * It returns the single instance for the bitmap loader executor object.
+     * 
+     * @param context
+     *            any context of the application, used to read the number of
+     *            threads from the resources
+     */
+    public static synchronized BitmapLoaderExecutor getInstance(Context context) {
+        if (mBitmapLoaderExecutor == null) {
+            Resources resources = context.getApplicationContext().getResources();
+            mBitmapLoaderExecutor = new BitmapLoaderExecutor(
+                    resources.getInteger(R.integer.image_network_threads),
+                    resources.getInteger(R.integer.image_decode_threads));
+        }
+        return mBitmapLoaderExecutor;
+    }
+
+    /**
+     * It returns the executor where download tasks shall run.
+     */
+    public Executor getNetworkExecutor() {
+        return networkExecutor;
+    }
+
+    /**
+     * It returns the executor where prefetch tasks shall run. Prefetched
+     * bitmaps are not shown yet, so this executor has fewer threads and they
+     * do not take the threads of the network executor.
+     */
+    public Executor getPrefetchExecutor() {
+        return prefetchExecutor;
+    }
+
+    /**
+     * It returns the executor where tasks look for their bitmaps in the disk
+     * cache, before any of them is queued for the network.
+     */
+    public Executor getDiskExecutor() {
+        return diskExecutor;
+    }
+
+    /**
+     * It returns the executor where thumbnails are downloaded, while the
+     * network threads download their bitmaps at the same time.
+     */
+    public Executor getThumbnailExecutor() {
+        return thumbnailExecutor;
+    }
+
+    /**
+     * It moves the entry task from the queue of the prefetch executor to the
+     * network executor, if it did not start yet.
+     * 
+     * @return true if the task was moved
+     */
+    public boolean moveToNetworkExecutor(Runnable task) {
+        if (prefetchExecutor.remove(task)) {
+            networkExecutor.execute(task);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * It stops downloads from starting until resumeNetwork is called. The
+     * downloads already started are not affected.
+     */
+    public synchronized void pauseNetwork() {
+        if (!networkPaused) {
+            Log.d(TAG, "Network paused");
+            networkPaused = true;
+        }
+    }
+
+    /**
+     * It lets the downloads waiting for the network start.
+     */
+    public synchronized void resumeNetwork() {
+        if (networkPaused) {
+            Log.d(TAG, "Network resumed");
+            networkPaused = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * It blocks the calling thread while the network is paused. It shall be
+     * called before starting each download, only from the network and
+     * prefetch threads.
+     * 
+     * @throws InterruptedException
+     *             if the calling task gets cancelled while waiting
+     */
+    public synchronized void awaitNetwork() throws InterruptedException {
+        while (networkPaused) {
+            wait();
+        }
+    }
+
+    /**
+     * It changes the number of threads used to download bitmaps.
+     */
+    public synchronized void setNetworkThreads(int networkThreads) {
+        if (networkThreads < 1) {
+            throw new IllegalArgumentException("networkThreads < 1");
+        }
+        // The maximum pool size is never allowed to be lower than the core
+        // pool size, so the order they are set depends on the new value
+        if (networkThreads > networkExecutor.getMaximumPoolSize()) {
+            networkExecutor.setMaximumPoolSize(networkThreads);
+            networkExecutor.setCorePoolSize(networkThreads);
+        } else {
+            networkExecutor.setCorePoolSize(networkThreads);
+            networkExecutor.setMaximumPoolSize(networkThreads);
+        }
+    }
+
+    /**
+     * It returns the number of threads used to download bitmaps.
+     */
+    public int getNetworkThreads() {
+        return networkExecutor.getMaximumPoolSize();
+    }
+
+    /**
+     * It changes the number of bitmaps decoded at the same time.
+     */
+    public synchronized void setDecodeThreads(int decodeThreads) {
+        if (decodeThreads < 1) {
+            throw new IllegalArgumentException("decodeThreads < 1");
+        }
+        if (decodeThreads > this.decodeThreads) {
+            decodePermits.release(decodeThreads - this.decodeThreads);
+        } else if (decodeThreads < this.decodeThreads) {
+            decodePermits.reduce(this.decodeThreads - decodeThreads);
+        }
+        this.decodeThreads = decodeThreads;
+    }
+
+    /**
+     * It blocks the calling thread until it's allowed to decode a bitmap. Each
+     * call must be followed by a call to finishDecode.
+     * 
+     * @throws InterruptedException
+     *             if the calling task gets cancelled while waiting
+     */
+    public void startDecode() throws InterruptedException {
+        decodePermits.acquire();
+    }
+
+    /**
+     * It allows another thread to decode a bitmap.
+     */
+    public void finishDecode() {
+        decodePermits.release();
+    }
+
+}
@@ -0,0 +1,335 @@
+package com.rafasimionato.wmproject.image;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+import android.widget.ImageView;
+
+/**
+ * This class implements the singleton design pattern to manage a pool of
+ * bitmaps no longer used, so their memory is reused to decode new bitmaps
+ * through BitmapFactory.Options.inBitmap instead of being garbage.
+ * 
+ * Bitmaps kicked out from the hard part of the BitmapCache go into the pool,
+ * unless they are still in use. That's why the image views fed by the
+ * BitmapHandler tell the pool which bitmap they are showing, and the download
+ * tasks tell it which bitmaps they may still show. Please @see setDisplayed
+ * and retain.
+ * 
+ * Bitmaps in use are counted by identity, so checking a bitmap does not scan
+ * all image views.
+ * 
+ * The pool is bucketed by the size in bytes of the bitmaps and limited by a
+ * memory budget, which is a fraction of the maximum heap available to the
+ * application. When the budget is exceeded, the oldest bitmaps are dropped.
+ * 
+ * Since Android 4.4 any bitmap at least as big as the new one can be reused.
+ * Before that, the reused bitmap must have exactly the same dimensions and the
+ * image must not be subsampled.
+ */
+public class BitmapPool {
+
+    private static final String TAG = "BitmapPool";
+
+    private static BitmapPool mBitmapPool = null;
+
+    // Defines the fraction of the maximum heap used as budget by the pool
+    // (1 / MEMORY_FRACTION_DIVIDER)
+    private static final int MEMORY_FRACTION_DIVIDER = 32;
+
+    // A bigger bitmap is only reused when it's up to this number of times the
+    // required size, to avoid holding too much memory for a small bitmap
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    private final int maxSize;
+
+    // These attributes are guarded by the pool object
+    private final TreeMap<Integer, LinkedList<Bitmap>> buckets =
+            new TreeMap<Integer, LinkedList<Bitmap>>();
+    private final LinkedList<Bitmap> insertionOrder = new LinkedList<Bitmap>();
+    private final WeakHashMap<ImageView, Bitmap> displayedBitmaps =
+            new WeakHashMap<ImageView, Bitmap>();
+    private int size = 0;
+
+    // Number of image views showing each bitmap, and of download tasks that
+    // may still show it. Image views collected by the garbage collector
+    // leave the first counts behind, so they're recounted from the image
+    // views left when there are fewer of them than counted
+    private final IdentityHashMap<Bitmap, Integer> displayCounts =
+            new IdentityHashMap<Bitmap, Integer>();
+    private final IdentityHashMap<Bitmap, Integer> retainCounts =
+            new IdentityHashMap<Bitmap, Integer>();
+    private int displayedCount = 0;
+
+    // Counters used to check how effective the pool is
+    private long reuseCount = 0;
+    private long missCount = 0;
+
+    private BitmapPool(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * It returns the single instance for the bitmap pool object.
+     */
+    public static synchronized BitmapPool getInstance() {
+        if (mBitmapPool == null) {
+            mBitmapPool = new BitmapPool((int) (Runtime.getRuntime().maxMemory()
+                    / MEMORY_FRACTION_DIVIDER));
+        }
+        return mBitmapPool;
+    }
+
+    /**
+     * It returns true if the bitmap memory can be reused with any size up to
+     * its allocation size, which is allowed since Android 4.4.
+     */
+    static boolean canReuseAnySize() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    private static int getAllocationSize(Bitmap bitmap) {
+        if (canReuseAnySize()) {
+            return bitmap.getAllocationByteCount();
+        }
+        return BitmapCache.getBitmapSize(bitmap);
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) {
+            return 4;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 2;
+    }
+
+    /**
+     * It tells the pool the entry image view is now showing the entry bitmap
+     * (or a drawable, if bitmap is null). A bitmap being shown is never put
+     * into the pool.
+     */
+    public synchronized void setDisplayed(ImageView imageView, Bitmap bitmap) {
+        Bitmap previous;
+        if (bitmap == null) {
+            previous = displayedBitmaps.remove(imageView);
+        } else {
+            previous = displayedBitmaps.put(imageView, bitmap);
+        }
+        if (previous == bitmap) {
+            return;
+        }
+        if (previous != null) {
+            decrement(displayCounts, previous);
+            displayedCount--;
+        }
+        if (bitmap != null) {
+            increment(displayCounts, bitmap);
+            displayedCount++;
+        }
+    }
+
+    /**
+     * It tells the pool the entry bitmap may still be shown, even if no image
+     * view is showing it right now, e.g. the thumbnail of a bitmap being
+     * downloaded. It's not put into the pool until it's released as many
+     * times as it was retained.
+     */
+    public synchronized void retain(Bitmap bitmap) {
+        increment(retainCounts, bitmap);
+    }
+
+    /**
+     * It tells the pool the entry bitmap, previously retained, will not be
+     * shown anymore unless an image view is showing it.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        decrement(retainCounts, bitmap);
+    }
+
+    /**
+     * It returns true if the entry bitmap is being shown by any image view or
+     * is retained.
+     */
+    public synchronized boolean isInUse(Bitmap bitmap) {
+        if (displayedBitmaps.size() < displayedCount) {
+            recountDisplayed();
+        }
+        return displayCounts.containsKey(bitmap) || retainCounts.containsKey(bitmap);
+    }
+
+    /**
+     * It counts again the bitmaps shown by the image views still alive.
+     */
+    private void recountDisplayed() {
+        displayCounts.clear();
+        displayedCount = 0;
+        for (Bitmap bitmap : displayedBitmaps.values()) {
+            increment(displayCounts, bitmap);
+            displayedCount++;
+        }
+    }
+
+    private static void increment(IdentityHashMap<Bitmap, Integer> counts, Bitmap bitmap) {
+        Integer count = counts.get(bitmap);
+        counts.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    private static void decrement(IdentityHashMap<Bitmap, Integer> counts, Bitmap bitmap) {
+        Integer count = counts.get(bitmap);
+        if (count == null || count <= 1) {
+            counts.remove(bitmap);
+        } else {
+            counts.put(bitmap, count - 1);
+        }
+    }
+
+    /**
+     * It puts the entry bitmap into the pool if it can be reused. If the
+     * budget is exceeded, the oldest bitmaps are dropped.
+     * 
+     * @return true if the bitmap was put into the pool
+     */
+    public synchronized boolean put(Bitmap bitmap) {
+
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled() || isInUse(bitmap)) {
+            return false;
+        }
+
+        int bitmapSize = getAllocationSize(bitmap);
+        if (bitmapSize > maxSize) {
+            return false;
+        }
+
+        LinkedList<Bitmap> bucket = buckets.get(bitmapSize);
+        if (bucket == null) {
+            bucket = new LinkedList<Bitmap>();
+            buckets.put(bitmapSize, bucket);
+        }
+        bucket.addLast(bitmap);
+        insertionOrder.addLast(bitmap);
+        size += bitmapSize;
+
+        trimToSize(maxSize);
+        return true;
+    }
+
+    /**
+     * It takes from the pool a bitmap that can be reused to decode a new
+     * bitmap with the entry dimensions and config, or returns null if there
+     * is none.
+     * 
+     * @param width
+     *            width of the decoded bitmap
+     * @param height
+     *            height of the decoded bitmap
+     * @param config
+     *            config of the decoded bitmap
+     * @param inSampleSize
+     *            sample size used to decode the bitmap
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config, int inSampleSize) {
+
+        int requiredSize = width * height * getBytesPerPixel(config);
+
+        if (canReuseAnySize()) {
+            Map.Entry<Integer, LinkedList<Bitmap>> entry = buckets.ceilingEntry(requiredSize);
+            while (entry != null && entry.getKey() <= requiredSize * MAX_SIZE_MULTIPLE) {
+                Bitmap bitmap = take(entry.getKey(), entry.getValue(), null, 0, 0);
+                if (bitmap != null) {
+                    reuseCount++;
+                    return bitmap;
+                }
+                entry = buckets.higherEntry(entry.getKey());
+            }
+        } else if (inSampleSize == 1) {
+            LinkedList<Bitmap> bucket = buckets.get(requiredSize);
+            if (bucket != null) {
+                Bitmap bitmap = take(requiredSize, bucket, config, width, height);
+                if (bitmap != null) {
+                    reuseCount++;
+                    return bitmap;
+                }
+            }
+        }
+
+        missCount++;
+        return null;
+    }
+
+    /**
+     * It removes from the bucket and returns the first bitmap matching the
+     * entry config and dimensions. If config is null, any bitmap matches.
+     */
+    private Bitmap take(int bucketSize, LinkedList<Bitmap> bucket, Bitmap.Config config,
+            int width, int height) {
+        Iterator<Bitmap> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            if (config == null
+                    || (bitmap.getConfig() == config && bitmap.getWidth() == width && bitmap
+                            .getHeight() == height)) {
+                iterator.remove();
+                if (bucket.isEmpty()) {
+                    buckets.remove(bucketSize);
+                }
+                insertionOrder.remove(bitmap);
+                size -= bucketSize;
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * It drops all bitmaps from the pool.
+     */
+    public synchronized void clear() {
+        Log.d(TAG, "Clearing pool holding " + size + " bytes");
+        trimToSize(0);
+    }
+
+    /**
+     * It returns how many bytes are currently held by the pool.
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * It returns how many times a bitmap was reused.
+     */
+    public synchronized long getReuseCount() {
+        return reuseCount;
+    }
+
+    /**
+     * It returns how many times no bitmap could be reused.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    private void trimToSize(int maxSize) {
+        while (size > maxSize && !insertionOrder.isEmpty()) {
+            Bitmap bitmap = insertionOrder.removeFirst();
+            int bitmapSize = getAllocationSize(bitmap);
+            LinkedList<Bitmap> bucket = buckets.get(bitmapSize);
+            if (bucket != null) {
+                bucket.remove(bitmap);
+                if (bucket.isEmpty()) {
+                    buckets.remove(bitmapSize);
+                }
+            }
+            size -= bitmapSize;
+        }
+    }
+
+}
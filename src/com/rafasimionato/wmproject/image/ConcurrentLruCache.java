@@ -0,0 +1,328 @@
+package com.rafasimionato.wmproject.image;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class implements a concurrent least-recently used cache limited by a
+ * budget, where each entry is measured by { @see sizeOf }.
+ * 
+ * Entries are kept in a concurrent hash map, so looking up an entry never
+ * blocks. Instead of reordering the LRU list on every hit, which would require
+ * a global lock, each hit is only recorded in a lock-free read buffer. The
+ * buffer is replayed into the LRU list by whichever thread gets the eviction
+ * lock : a reader that fills the buffer and succeeds in a try lock, or any
+ * writer before changing the list.
+ * 
+ * The read buffer is a fixed ring of slots, where each hit takes the next slot
+ * by incrementing a counter, so recording a hit does not allocate anything.
+ * If the hits are not replayed before the ring wraps around, the oldest ones
+ * are overwritten, which only makes the LRU order a little less precise.
+ * 
+ * Writers (put, remove and trimming) are serialized by the eviction lock, as
+ * they have to change the LRU list and the total size anyway.
+ * 
+ * This class does not depend on the Android framework, so it can be exercised
+ * on a plain JVM as well.
+ * 
+ * @param <K>
+ *            type of the keys
+ * @param <V>
+ *            type of the cached values
+ */
+public abstract class ConcurrentLruCache<K, V> {
+
+    // Number of hits recorded before a reader tries to replay them
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+
+    // Number of slots of the read buffer, a power of two, so it's also the
+    // maximum number of hits pending to be replayed
+    private static final int READ_BUFFER_SIZE = 4 * READ_BUFFER_DRAIN_THRESHOLD;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+
+    // Each entry is a node of a doubly linked list from the least-recently
+    // accessed (head) to the most-recently accessed (tail) element. The links
+    // are guarded by the eviction lock
+    private static final class Node<K, V> {
+
+        final K key;
+        final V value;
+        final int size;
+
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        // It tells if this node still belongs to the LRU list, as a hit may
+        // be replayed after the node has been removed
+        boolean linked;
+
+        Node(K key, V value, int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    private final ConcurrentHashMap<K, Node<K, V>> data;
+
+    // Hits are written into the slot given by the number of hits recorded so
+    // far, and replayed up to that number
+    private final AtomicReferenceArray<Node<K, V>> readBuffer =
+            new AtomicReferenceArray<Node<K, V>>(READ_BUFFER_SIZE);
+    private final AtomicLong readBufferWriteCount = new AtomicLong();
+    // It's only written while holding the eviction lock
+    private volatile long readBufferReadCount = 0;
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    // These attributes are guarded by the eviction lock
+    private Node<K, V> head;
+    private Node<K, V> tail;
+    private int size;
+    private int maxSize;
+
+    /**
+     * @param maxSize
+     *            budget for the sum of all entries sizes
+     */
+    public ConcurrentLruCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+        this.data = new ConcurrentHashMap<K, Node<K, V>>(16, 0.75f, 4);
+    }
+
+    /**
+     * It returns how much of the budget the entry takes.
+     */
+    protected abstract int sizeOf(K key, V value);
+
+    /**
+     * It's called when the entry is kicked out because the budget was
+     * exceeded. It runs while holding the eviction lock, so it must be quick.
+     */
+    protected void entryEvicted(K key, V value) {
+    }
+
+    /**
+     * It returns the value referred by the key or null if it is not found.
+     * This method never blocks.
+     */
+    public final V get(K key) {
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            return null;
+        }
+        recordRead(node);
+        return node.value;
+    }
+
+    /**
+     * It returns true if the key refers any value. Unlike get, it does not
+     * record the entry as accessed, so it does not change the eviction order.
+     */
+    public final boolean containsKey(K key) {
+        return data.containsKey(key);
+    }
+
+    /**
+     * It stores the value as the most-recently accessed entry, evicting the
+     * least-recently accessed ones if the budget is exceeded.
+     * 
+     * @return the value previously referred by the key, if any
+     */
+    public final V put(K key, V value) {
+
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        Node<K, V> node = new Node<K, V>(key, value, sizeOf(key, value));
+        Node<K, V> previous;
+
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+            previous = data.put(key, node);
+            if (previous != null) {
+                unlink(previous);
+            }
+            linkLast(node);
+            evict(maxSize);
+        } finally {
+            evictionLock.unlock();
+        }
+
+        return previous == null ? null : previous.value;
+    }
+
+    /**
+     * It removes the entry referred by the key, if any.
+     */
+    public final V remove(K key) {
+        evictionLock.lock();
+        try {
+            Node<K, V> node = data.remove(key);
+            if (node == null) {
+                return null;
+            }
+            unlink(node);
+            return node.value;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * It evicts the least-recently accessed entries until the sum of all
+     * entries sizes fits the given size.
+     */
+    public final void trimToSize(int maxSize) {
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+            evict(maxSize);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * It evicts all entries.
+     */
+    public final void evictAll() {
+        trimToSize(-1);
+    }
+
+    /**
+     * It changes the budget, evicting entries if it's now exceeded.
+     */
+    public final void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        evictionLock.lock();
+        try {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * It returns the sum of all entries sizes.
+     */
+    public final int size() {
+        evictionLock.lock();
+        try {
+            return size;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * It returns the budget for the sum of all entries sizes.
+     */
+    public final int maxSize() {
+        evictionLock.lock();
+        try {
+            return maxSize;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * It returns the number of entries.
+     */
+    public final int count() {
+        return data.size();
+    }
+
+    /**
+     * It records a hit to be replayed later in the LRU list. If there are
+     * enough hits pending and nobody else is holding the eviction lock, this
+     * thread replays them right now.
+     */
+    private void recordRead(Node<K, V> node) {
+
+        long writeCount = readBufferWriteCount.getAndIncrement();
+        readBuffer.lazySet((int) (writeCount & READ_BUFFER_MASK), node);
+
+        long pending = writeCount + 1 - readBufferReadCount;
+        if (pending >= READ_BUFFER_DRAIN_THRESHOLD && evictionLock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    // Must be called while holding the eviction lock. Hits are replayed in
+    // the order they were recorded, skipping the ones already overwritten and
+    // the slots whose hit is still being written
+    private void drainReadBuffer() {
+        long writeCount = readBufferWriteCount.get();
+        long readCount = Math.max(readBufferReadCount, writeCount - READ_BUFFER_SIZE);
+        for (; readCount < writeCount; readCount++) {
+            Node<K, V> node = readBuffer.getAndSet((int) (readCount & READ_BUFFER_MASK), null);
+            if (node != null && node.linked && node != tail) {
+                unlink(node);
+                linkLast(node);
+            }
+        }
+        readBufferReadCount = writeCount;
+    }
+
+    // Must be called while holding the eviction lock
+    private void evict(int maxSize) {
+        while (size > maxSize && head != null) {
+            Node<K, V> node = head;
+            unlink(node);
+            data.remove(node.key, node);
+            entryEvicted(node.key, node.value);
+        }
+    }
+
+    // Must be called while holding the eviction lock
+    private void linkLast(Node<K, V> node) {
+        node.prev = tail;
+        node.next = null;
+        if (tail == null) {
+            head = node;
+        } else {
+            tail.next = node;
+        }
+        tail = node;
+        node.linked = true;
+        size += node.size;
+    }
+
+    // Must be called while holding the eviction lock
+    private void unlink(Node<K, V> node) {
+        if (!node.linked) {
+            return;
+        }
+        if (node.prev == null) {
+            head = node.next;
+        } else {
+            node.prev.next = node.next;
+        }
+        if (node.next == null) {
+            tail = node.prev;
+        } else {
+            node.next.prev = node.prev;
+        }
+        node.prev = null;
+        node.next = null;
+        node.linked = false;
+        size -= node.size;
+    }
+
+}
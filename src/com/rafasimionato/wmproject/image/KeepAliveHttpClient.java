@@ -0,0 +1,71 @@
+package com.rafasimionato.wmproject.image;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+/**
+ * This class creates the http client shared by the download tasks
+ * { @see BitmapHttpClient }. It keeps a pool of connections alive, bounded by
+ * route, so the next requests to the same host reuse them instead of opening
+ * new ones.
+ * 
+ * It only depends on the Apache http client, so the pooling can be checked
+ * on a plain JVM against a local server as well.
+ */
+public final class KeepAliveHttpClient {
+
+    private static final String USER_AGENT = "Android";
+
+    private KeepAliveHttpClient() {
+    }
+
+    /**
+     * @param maxConnections
+     *            maximum number of connections opened to the same route, which
+     *            shall be the number of threads downloading at the same time
+     * @param connectionTimeout
+     *            timeout in milliseconds to open a connection, and to get one
+     *            from the pool
+     * @param socketTimeout
+     *            timeout in milliseconds waiting for data
+     */
+    public static HttpClient create(int maxConnections, int connectionTimeout, int socketTimeout) {
+
+        HttpParams params = new BasicHttpParams();
+
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, "UTF-8");
+        HttpProtocolParams.setUserAgent(params, USER_AGENT);
+
+        HttpConnectionParams.setStaleCheckingEnabled(params, false);
+        HttpConnectionParams.setConnectionTimeout(params, connectionTimeout);
+        HttpConnectionParams.setSoTimeout(params, socketTimeout);
+        HttpConnectionParams.setSocketBufferSize(params, 8192);
+        HttpClientParams.setRedirecting(params, true);
+
+        ConnManagerParams.setMaxTotalConnections(params, maxConnections * 2);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+        ConnManagerParams.setTimeout(params, connectionTimeout);
+
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        return new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemeRegistry),
+                params);
+    }
+
+}
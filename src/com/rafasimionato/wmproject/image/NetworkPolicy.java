@@ -0,0 +1,273 @@
+package com.rafasimionato.wmproject.image;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.SystemClock;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import com.rafasimionato.wmproject.R;
+
+/**
+ * This class implements the singleton design pattern to adapt how bitmaps are
+ * downloaded to the network the device is connected to.
+ * 
+ * It watches connectivity changes and the throughput measured by the download
+ * tasks { @see BitmapHandlerDownloadTask }. A link is constrained when it's
+ * metered, a 2G mobile network, or when the measured throughput is slow. On
+ * constrained links, smaller pictures are requested { @see getAvatarSize } and
+ * fewer network threads are used. When the device is offline, bitmaps are
+ * only served from the caches.
+ * 
+ * The throughput is the bytes received over the time any download was
+ * active, so concurrent downloads sharing the link are not counted as slow.
+ * Downloads smaller than MIN_SAMPLE_BYTES are ignored, as their time is mostly
+ * latency. A link becomes slow below SLOW_BYTES_PER_SECOND and only stops
+ * being slow above FAST_BYTES_PER_SECOND, so it does not flap between both.
+ * 
+ * URLs that failed to be downloaded are kept in a negative cache and not
+ * requested again until a backoff time has elapsed, doubling after each
+ * failure. Please @see isBackedOff.
+ */
+public class NetworkPolicy {
+
+    private static final String TAG = "NetworkPolicy";
+
+    private static NetworkPolicy mNetworkPolicy = null;
+
+    // Throughput below which a link becomes slow, and above which it stops
+    // being slow
+    private static final long SLOW_BYTES_PER_SECOND = 20 * 1024;
+    private static final long FAST_BYTES_PER_SECOND = 40 * 1024;
+
+    // Downloads smaller than this are not added to the throughput
+    private static final long MIN_SAMPLE_BYTES = 2 * 1024;
+
+    // Active time after which the bytes and time measured so far are halved,
+    // so the throughput follows the recent downloads
+    private static final long SAMPLE_WINDOW_MILLIS = 10 * 1000;
+
+    // Number of network threads used on constrained links
+    private static final int CONSTRAINED_NETWORK_THREADS = 2;
+
+    // Backoff time after the first failure and its upper bound
+    private static final long INITIAL_BACKOFF_MILLIS = 30 * 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60 * 60 * 1000;
+
+    // Number of failed URLs remembered
+    private static final int MAX_FAILED_URLS = 256;
+
+    // A URL that failed to be downloaded
+    private static final class Failure {
+
+        int count;
+        long retryAt;
+    }
+
+    private final ConnectivityManager connectivityManager;
+    private final BitmapLoaderExecutor loaderExecutor;
+    private final int networkThreads;
+
+    private volatile boolean offline = false;
+    private volatile boolean meteredOrSlowType = false;
+
+    // Bytes received and time with any download active, the end of the last
+    // download added, and if the link is slow. They're guarded by the policy
+    // object
+    private long sampledBytes = 0;
+    private long sampledMillis = 0;
+    private long sampledUntil = 0;
+    private boolean slow = false;
+
+    private volatile boolean constrained = false;
+
+    // Failed URLs, from the least-recently to the most-recently failed one.
+    // It's guarded by the map itself
+    private final LinkedHashMap<String, Failure> failures = new LinkedHashMap<String, Failure>(
+            16, 0.75f, true) {
+
+        private static final long serialVersionUID = -2398469812639850102L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Failure> eldest) {
+            return size() > MAX_FAILED_URLS;
+        }
+    };
+
+    private NetworkPolicy(Context context) {
+
+        connectivityManager = (ConnectivityManager) context
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        loaderExecutor = BitmapLoaderExecutor.getInstance(context);
+        networkThreads = context.getResources().getInteger(R.integer.image_network_threads);
+
+        updateConnectivity();
+        context.registerReceiver(new BroadcastReceiver() {
+
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                updateConnectivity();
+            }
+        }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /**
+     * It returns the single instance for the network policy object.
+     * 
+     * @param context
+     *            any context of the application, used to watch connectivity
+     *            changes
+     */
+    public static synchronized NetworkPolicy getInstance(Context context) {
+        if (mNetworkPolicy == null) {
+            mNetworkPolicy = new NetworkPolicy(context.getApplicationContext());
+        }
+        return mNetworkPolicy;
+    }
+
+    /**
+     * It reads the active network. A new network starts with an unknown
+     * throughput, which is not slow.
+     */
+    private synchronized void updateConnectivity() {
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        offline = networkInfo == null || !networkInfo.isConnected();
+        meteredOrSlowType = !offline
+                && (connectivityManager.isActiveNetworkMetered() || isSlowType(networkInfo));
+        sampledBytes = 0;
+        sampledMillis = 0;
+        sampledUntil = 0;
+        slow = false;
+        Log.d(TAG, "Connectivity changed : " + (offline ? "offline" : "online")
+                + (meteredOrSlowType ? ", metered or slow" : ""));
+        updateConstrained();
+    }
+
+    private static boolean isSlowType(NetworkInfo networkInfo) {
+        if (networkInfo.getType() != ConnectivityManager.TYPE_MOBILE) {
+            return false;
+        }
+        switch (networkInfo.getSubtype()) {
+        case TelephonyManager.NETWORK_TYPE_GPRS:
+        case TelephonyManager.NETWORK_TYPE_EDGE:
+        case TelephonyManager.NETWORK_TYPE_CDMA:
+        case TelephonyManager.NETWORK_TYPE_1xRTT:
+        case TelephonyManager.NETWORK_TYPE_IDEN:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * It adds the entry download to the throughput, unless it's too small.
+     * Only the part of its time not overlapping the downloads already added
+     * is counted, so the time is counted once for concurrent downloads.
+     * 
+     * @param bytes
+     *            bytes received
+     * @param startMillis
+     *            uptime when the request was sent
+     * @param endMillis
+     *            uptime when the whole response was received
+     */
+    public synchronized void addThroughputSample(long bytes, long startMillis, long endMillis) {
+        if (bytes < MIN_SAMPLE_BYTES) {
+            return;
+        }
+        sampledBytes += bytes;
+        sampledMillis += Math.max(0, endMillis - Math.max(startMillis, sampledUntil));
+        sampledUntil = Math.max(sampledUntil, endMillis);
+        long bytesPerSecond = sampledBytes * 1000 / Math.max(1, sampledMillis);
+        if (sampledMillis > SAMPLE_WINDOW_MILLIS) {
+            sampledBytes /= 2;
+            sampledMillis /= 2;
+        }
+        slow = slow ? bytesPerSecond < FAST_BYTES_PER_SECOND
+                : bytesPerSecond < SLOW_BYTES_PER_SECOND;
+        updateConstrained();
+    }
+
+    private void updateConstrained() {
+        boolean constrained = meteredOrSlowType || slow;
+        if (constrained != this.constrained) {
+            Log.d(TAG, constrained ? "Link constrained" : "Link unconstrained");
+            this.constrained = constrained;
+            loaderExecutor.setNetworkThreads(constrained ? Math.min(networkThreads,
+                    CONSTRAINED_NETWORK_THREADS) : networkThreads);
+        }
+    }
+
+    /**
+     * It returns true if the device is not connected to any network, so
+     * bitmaps shall only be served from the caches.
+     */
+    public boolean isOffline() {
+        return offline;
+    }
+
+    /**
+     * It returns true if the link is metered or slow.
+     */
+    public boolean isConstrained() {
+        return constrained;
+    }
+
+    /**
+     * It returns the canonical size to be requested for pictures shown with
+     * the entry canonical size: the same one, or the next smaller one on
+     * constrained links.
+     */
+    public int getAvatarSize(int size) {
+        return constrained ? AvatarSize.getSmallerSize(size) : size;
+    }
+
+    /**
+     * It records that the server failed to give a bitmap for the entry URL,
+     * so it's not requested again until its backoff time has elapsed. Timeouts
+     * and other failures to reach the server are not recorded, as they tell
+     * nothing about the URL.
+     */
+    public void addFailure(String url) {
+        synchronized (failures) {
+            Failure failure = failures.get(url);
+            if (failure == null) {
+                failure = new Failure();
+                failures.put(url, failure);
+            }
+            long backoff = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(
+                    failure.count, 16));
+            failure.count++;
+            failure.retryAt = SystemClock.elapsedRealtime() + backoff;
+            Log.d(TAG, "Backing off " + url + " for " + backoff / 1000 + " s");
+        }
+    }
+
+    /**
+     * It forgets any failure of the entry URL.
+     */
+    public void removeFailure(String url) {
+        synchronized (failures) {
+            failures.remove(url);
+        }
+    }
+
+    /**
+     * It returns true if the entry URL failed to be downloaded and its
+     * backoff time has not elapsed yet.
+     */
+    public boolean isBackedOff(String url) {
+        synchronized (failures) {
+            Failure failure = failures.get(url);
+            return failure != null && SystemClock.elapsedRealtime() < failure.retryAt;
+        }
+    }
+
+}
@@ -0,0 +1,258 @@
+package com.rafasimionato.wmproject.util;
+
+import java.io.PrintWriter;
+
+import android.util.Log;
+import android.view.Choreographer;
+
+/**
+ * This class measures how smoothly the list view object
+ * { @see listView_contactsList } is shown, so list performance can be
+ * compared between releases :
+ * 
+ * - the time taken to bind each row, as a histogram
+ * - how many rows were bound with a cached bitmap instead of the default one
+ * - the time from the first page of contacts received to the first bitmap
+ * shown
+ * - how many frames were dropped, measured by a Choreographer frame callback
+ * 
+ * Metrics are opt-in. They are only collected when the log level of the TAG
+ * is DEBUG or lower ("adb shell setprop log.tag.WMMetrics DEBUG") or
+ * setEnabled was called. Collecting them does not allocate, but the frame
+ * callback wakes the UI thread on every frame, which is why it's disabled by
+ * default. They are printed by dump, which is called when the activity is
+ * dumped ("adb shell dumpsys activity
+ * com.rafasimionato.wmproject/.FriendsList").
+ * 
+ * All methods shall be called from the UI thread.
+ */
+public final class ListMetrics {
+
+    private static final String TAG = "WMMetrics";
+
+    // Duration of a frame, assuming a 60 Hz display
+    private static final long FRAME_INTERVAL_NANOS = 1000000000L / 60;
+
+    // Upper bounds of the bind time histogram buckets. The last bucket counts
+    // the binds taking longer than the last bound
+    private static final int[] BIND_BUCKET_MICROS = { 100, 250, 500, 1000, 2000, 4000, 8000,
+            16000 };
+
+    private static volatile boolean enabled = Log.isLoggable(TAG, Log.DEBUG);
+
+    // Row binds
+    private static final long[] bindBuckets = new long[BIND_BUCKET_MICROS.length + 1];
+    private static long bindCount = 0;
+    private static long bindTotalNanos = 0;
+    private static long bindMaxNanos = 0;
+
+    // Bitmaps set when binding rows
+    private static long cachedBitmapBinds = 0;
+    private static long defaultBitmapBinds = 0;
+
+    // Time to the first bitmap shown. The start time is 0 when no bitmap is
+    // waited for
+    private static long contactsReceivedNanos = 0;
+    private static long firstBitmapMillis = -1;
+
+    // Frames
+    private static long frameCount = 0;
+    private static long droppedFrames = 0;
+    private static long jankyFrames = 0;
+    private static long lastFrameNanos = 0;
+    private static boolean frameMonitorStarted = false;
+    private static boolean frameCallbackPosted = false;
+
+    private static final Choreographer.FrameCallback frameCallback =
+            new Choreographer.FrameCallback() {
+
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    frameCallbackPosted = false;
+                    countFrame(frameTimeNanos);
+                    postFrameCallback();
+                }
+            };
+
+    private ListMetrics() {
+    }
+
+    /**
+     * It returns true if metrics are being collected.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * It starts or stops collecting metrics.
+     */
+    public static void setEnabled(boolean enabled) {
+        ListMetrics.enabled = enabled;
+        lastFrameNanos = 0;
+        postFrameCallback();
+    }
+
+    /**
+     * It clears all metrics collected so far.
+     */
+    public static void reset() {
+        for (int i = 0; i < bindBuckets.length; i++) {
+            bindBuckets[i] = 0;
+        }
+        bindCount = 0;
+        bindTotalNanos = 0;
+        bindMaxNanos = 0;
+        cachedBitmapBinds = 0;
+        defaultBitmapBinds = 0;
+        contactsReceivedNanos = 0;
+        firstBitmapMillis = -1;
+        frameCount = 0;
+        droppedFrames = 0;
+        jankyFrames = 0;
+        lastFrameNanos = 0;
+    }
+
+    /**
+     * It returns the start time of a row bind to be passed to endBind, or 0
+     * if metrics are not being collected.
+     */
+    public static long beginBind() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * It counts a row bind that started at the entry time returned by
+     * beginBind.
+     */
+    public static void endBind(long start) {
+        if (start == 0 || !enabled) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        long micros = nanos / 1000;
+        int bucket = 0;
+        while (bucket < BIND_BUCKET_MICROS.length && micros >= BIND_BUCKET_MICROS[bucket]) {
+            bucket++;
+        }
+        bindBuckets[bucket]++;
+        bindCount++;
+        bindTotalNanos += nanos;
+        bindMaxNanos = Math.max(bindMaxNanos, nanos);
+    }
+
+    /**
+     * It counts a row bound with a cached bitmap, or with the default bitmap
+     * while its own bitmap is downloaded (or when it has none).
+     */
+    public static void countBitmapBind(boolean cached) {
+        if (!enabled) {
+            return;
+        }
+        if (cached) {
+            cachedBitmapBinds++;
+        } else {
+            defaultBitmapBinds++;
+        }
+    }
+
+    /**
+     * It starts measuring the time to the first bitmap shown. It shall be
+     * called when the first page of contacts is received.
+     */
+    public static void markContactsReceived() {
+        if (enabled) {
+            contactsReceivedNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * It stops measuring the time to the first bitmap shown, if it was being
+     * measured. It shall be called every time a bitmap is shown.
+     */
+    public static void markBitmapShown() {
+        if (contactsReceivedNanos != 0 && enabled) {
+            firstBitmapMillis = (System.nanoTime() - contactsReceivedNanos) / 1000000;
+            contactsReceivedNanos = 0;
+        }
+    }
+
+    /**
+     * It starts counting frames while metrics are being collected. It shall
+     * be called when the list view becomes visible.
+     */
+    public static void startFrameMonitor() {
+        frameMonitorStarted = true;
+        postFrameCallback();
+    }
+
+    /**
+     * It stops counting frames. It shall be called when the list view is no
+     * longer visible.
+     */
+    public static void stopFrameMonitor() {
+        frameMonitorStarted = false;
+        if (frameCallbackPosted) {
+            Choreographer.getInstance().removeFrameCallback(frameCallback);
+            frameCallbackPosted = false;
+        }
+        lastFrameNanos = 0;
+    }
+
+    private static void postFrameCallback() {
+        if (enabled && frameMonitorStarted && !frameCallbackPosted) {
+            Choreographer.getInstance().postFrameCallback(frameCallback);
+            frameCallbackPosted = true;
+        }
+    }
+
+    /**
+     * A frame is dropped for each frame interval elapsed since the previous
+     * frame, other than the one expected.
+     */
+    private static void countFrame(long frameTimeNanos) {
+        if (!enabled) {
+            lastFrameNanos = 0;
+            return;
+        }
+        if (lastFrameNanos != 0) {
+            long elapsedFrames = (frameTimeNanos - lastFrameNanos + FRAME_INTERVAL_NANOS / 2)
+                    / FRAME_INTERVAL_NANOS;
+            frameCount++;
+            if (elapsedFrames > 1) {
+                droppedFrames += elapsedFrames - 1;
+                jankyFrames++;
+            }
+        }
+        lastFrameNanos = frameTimeNanos;
+    }
+
+    /**
+     * It prints all metrics collected so far.
+     */
+    public static void dump(String prefix, PrintWriter writer) {
+
+        writer.println(prefix + "ListMetrics: " + (enabled ? "on" : "off"));
+
+        writer.println(prefix + "  Binds : " + bindCount + ", avg "
+                + (bindCount == 0 ? 0 : bindTotalNanos / bindCount / 1000) + " us, max "
+                + bindMaxNanos / 1000 + " us");
+        for (int i = 0; i < bindBuckets.length; i++) {
+            String bucket = i < BIND_BUCKET_MICROS.length ? "< " + BIND_BUCKET_MICROS[i] + " us"
+                    : ">= " + BIND_BUCKET_MICROS[i - 1] + " us";
+            writer.println(prefix + "    " + bucket + " : " + bindBuckets[i]);
+        }
+
+        long bitmapBinds = cachedBitmapBinds + defaultBitmapBinds;
+        writer.println(prefix + "  Bitmap binds : " + cachedBitmapBinds + " cached, "
+                + defaultBitmapBinds + " default ("
+                + (bitmapBinds == 0 ? 0 : cachedBitmapBinds * 100 / bitmapBinds) + "% cached)");
+
+        writer.println(prefix + "  Time to first bitmap : "
+                + (firstBitmapMillis < 0 ? "n/a" : firstBitmapMillis + " ms"));
+
+        writer.println(prefix + "  Frames : " + frameCount + ", " + jankyFrames + " janky, "
+                + droppedFrames + " dropped");
+    }
+
+}
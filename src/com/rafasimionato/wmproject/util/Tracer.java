@@ -0,0 +1,162 @@
+package com.rafasimionato.wmproject.util;
+
+import java.io.PrintWriter;
+
+import android.util.Log;
+
+import com.rafasimionato.wmproject.BuildConfig;
+
+/**
+ * This class records timing events of the code run for each row of the list
+ * view object { @see listView_contactsList }, such as binding a row or setting
+ * its bitmap, where logging a concatenated message would allocate strings for
+ * each row while the list view is scrolled.
+ * 
+ * Events are identified by int constants and recorded, along with an int
+ * argument (usually the row position), into a ring buffer allocated once, so
+ * recording an event does not allocate any object. The last events and a
+ * summary for each event type are printed by dump.
+ * 
+ * Tracing is gated twice. ENABLED is a compile-time constant, false in release
+ * builds, so the calls guarded by it are removed by the compiler. In debug
+ * builds, events are only recorded when the log level of the TAG is DEBUG or
+ * lower ("adb shell setprop log.tag.WMTrace DEBUG") or setTracing was called.
+ * Either way, the calls do not allocate when tracing is disabled.
+ * 
+ * Usage :
+ * 
+ * long start = Tracer.ENABLED ? Tracer.begin() : 0;
+ * ...
+ * if (Tracer.ENABLED) Tracer.end(Tracer.EVENT_GET_VIEW, position, start);
+ */
+public final class Tracer {
+
+    private static final String TAG = "WMTrace";
+
+    /**
+     * It tells if tracing is compiled in.
+     */
+    public static final boolean ENABLED = BuildConfig.DEBUG;
+
+    // Event types. Please keep EVENT_NAMES in the same order
+    public static final int EVENT_GET_VIEW = 0;
+    public static final int EVENT_SET_BITMAP_CACHED = 1;
+    public static final int EVENT_SET_BITMAP_DEFAULT = 2;
+    public static final int EVENT_SET_BITMAP_DOWNLOAD = 3;
+    public static final int EVENT_DOWNLOAD_JOINED = 4;
+    public static final int EVENT_DOWNLOAD_CANCELLED = 5;
+    public static final int EVENT_POST_EXECUTE = 6;
+    public static final int EVENT_BITMAP_SHOWN = 7;
+    public static final int EVENT_BITMAP_STALE = 8;
+    public static final int EVENT_PREFETCH = 9;
+
+    private static final String[] EVENT_NAMES = { "getView", "setBitmap (cached)",
+            "setBitmap (default)", "setBitmap (download)", "download joined",
+            "download cancelled", "onPostExecute", "bitmap shown", "bitmap stale", "prefetch" };
+
+    // Number of events kept in the ring buffer
+    private static final int CAPACITY = 1024;
+
+    // Events recorded, by column. They are guarded by the class object
+    private static final int[] events = new int[CAPACITY];
+    private static final int[] args = new int[CAPACITY];
+    private static final long[] startNanos = new long[CAPACITY];
+    private static final long[] durationNanos = new long[CAPACITY];
+    private static int next = 0;
+    private static long recordedCount = 0;
+
+    private static volatile boolean tracing = ENABLED && Log.isLoggable(TAG, Log.DEBUG);
+
+    private Tracer() {
+    }
+
+    /**
+     * It returns true if events are being recorded.
+     */
+    public static boolean isTracing() {
+        return ENABLED && tracing;
+    }
+
+    /**
+     * It starts or stops recording events. It has no effect when tracing is
+     * not compiled in.
+     */
+    public static void setTracing(boolean enabled) {
+        tracing = ENABLED && enabled;
+    }
+
+    /**
+     * It returns the start time of an event to be passed to end, or 0 if
+     * events are not being recorded.
+     */
+    public static long begin() {
+        return isTracing() ? System.nanoTime() : 0;
+    }
+
+    /**
+     * It records an event that started at the entry time returned by begin.
+     * Nothing is recorded if begin returned 0.
+     */
+    public static void end(int event, int arg, long start) {
+        if (start != 0 && isTracing()) {
+            record(event, arg, start, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * It records an event without duration.
+     */
+    public static void mark(int event, int arg) {
+        if (isTracing()) {
+            record(event, arg, System.nanoTime(), 0);
+        }
+    }
+
+    private static synchronized void record(int event, int arg, long start, long duration) {
+        events[next] = event;
+        args[next] = arg;
+        startNanos[next] = start;
+        durationNanos[next] = duration;
+        next = (next + 1) % CAPACITY;
+        recordedCount++;
+    }
+
+    /**
+     * It prints the count, average and maximum duration of each event type
+     * still in the ring buffer, followed by the events themselves from the
+     * oldest to the most recent one.
+     */
+    public static synchronized void dump(String prefix, PrintWriter writer) {
+
+        int count = (int) Math.min(recordedCount, CAPACITY);
+        int first = (next - count + CAPACITY) % CAPACITY;
+        writer.println(prefix + "Tracer: " + (isTracing() ? "on" : "off") + ", " + recordedCount
+                + " events recorded, last " + count + " kept");
+
+        int[] eventCounts = new int[EVENT_NAMES.length];
+        long[] totalNanos = new long[EVENT_NAMES.length];
+        long[] maxNanos = new long[EVENT_NAMES.length];
+        for (int i = 0; i < count; i++) {
+            int index = (first + i) % CAPACITY;
+            int event = events[index];
+            eventCounts[event]++;
+            totalNanos[event] += durationNanos[index];
+            maxNanos[event] = Math.max(maxNanos[event], durationNanos[index]);
+        }
+        for (int event = 0; event < EVENT_NAMES.length; event++) {
+            if (eventCounts[event] > 0) {
+                writer.println(prefix + "  " + EVENT_NAMES[event] + " : " + eventCounts[event]
+                        + " events, avg " + totalNanos[event] / eventCounts[event] / 1000
+                        + " us, max " + maxNanos[event] / 1000 + " us");
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            int index = (first + i) % CAPACITY;
+            writer.println(prefix + "  " + startNanos[index] / 1000 + " us "
+                    + EVENT_NAMES[events[index]] + " (" + args[index] + ") "
+                    + durationNanos[index] / 1000 + " us");
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+package com.rafasimionato.wmproject.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Tests for the compact list of contacts { @see CompactContactList }.
+ * 
+ * The concurrency test appends contacts page by page on one thread, as the UI
+ * thread does while loading, while another thread keeps reading every contact
+ * published, as the filter thread does. Each contact read must be complete.
+ */
+public class CompactContactListTest {
+
+    private static final int CONTACTS = 50000;
+    private static final int PAGE_SIZE = 50;
+
+    private static Contact contact(int i) {
+        String id = String.valueOf(100000000 + i);
+        return new Contact(id, "Name " + i, "https://plus.google.com/" + id,
+                i % 7 == 0 ? null : "https://lh" + (i % 3) + ".googleusercontent.com/" + id
+                        + "/photo.jpg");
+    }
+
+    @Test
+    public void keepsAllFieldsOfEachContact() {
+        CompactContactList list = new CompactContactList(1);
+        for (int i = 0; i < 1000; i++) {
+            list.add(contact(i));
+        }
+        list.add(new Contact(null, null, null, null));
+        list.trimToSize();
+
+        assertEquals(1001, list.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(contact(i), list.get(i));
+            assertEquals(contact(i).getPictureUrl(), list.getPictureUrl(i));
+        }
+        assertNull(list.getName(1000));
+        assertNull(list.getProfileUrl(1000));
+    }
+
+    @Test
+    public void readersSeeCompleteContactsWhileTheListGrows() throws Exception {
+
+        final CompactContactList list = new CompactContactList();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final int[] reads = new int[1];
+
+        Thread reader = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    int size = 0;
+                    while (size < CONTACTS) {
+                        size = list.size();
+                        for (int i = Math.max(0, size - 2 * PAGE_SIZE); i < size; i++) {
+                            String id = String.valueOf(100000000 + i);
+                            assertEquals(id, list.getId(i));
+                            assertEquals("Name " + i, list.getName(i));
+                            assertEquals("https://plus.google.com/" + id,
+                                    list.getProfileUrl(i));
+                            assertEquals(contact(i).getPictureUrl(), list.getPictureUrl(i));
+                            reads[0]++;
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+        reader.start();
+
+        List<Contact> page = new ArrayList<Contact>(PAGE_SIZE);
+        for (int i = 0; i < CONTACTS; i++) {
+            page.add(contact(i));
+            if (page.size() == PAGE_SIZE) {
+                list.addAll(page);
+                page.clear();
+            }
+        }
+        reader.join();
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(CONTACTS, list.size());
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.rafasimionato.wmproject.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests for the difference between two compact lists of contacts
+ * { @see ContactListDiff }, and the stable IDs it matches them by.
+ */
+public class ContactListDiffTest {
+
+    private static Contact contact(String id, String name) {
+        return new Contact(id, name, "https://plus.google.com/" + id,
+                "https://lh3.googleusercontent.com/" + id + "/photo.jpg");
+    }
+
+    @Test
+    public void sameContactsInAnotherOrderAreUnchanged() {
+        CompactContactList oldList = new CompactContactList(Arrays.asList(contact("1", "Ana"),
+                contact("2", "Bruno"), contact("3", "Carla")));
+        CompactContactList newList = new CompactContactList(Arrays.asList(contact("3", "Carla"),
+                contact("1", "Ana"), contact("2", "Bruno")));
+
+        ContactListDiff diff = ContactListDiff.compute(oldList, oldList.size(), newList,
+                newList.size());
+
+        assertTrue(diff.isEmpty());
+        assertEquals(1, diff.getNewPosition(0));
+        assertEquals(2, diff.getNewPosition(1));
+        assertEquals(0, diff.getNewPosition(2));
+        assertEquals(oldList.getStableId(0), newList.getStableId(1));
+    }
+
+    @Test
+    public void findsInsertedRemovedAndChangedContacts() {
+        CompactContactList oldList = new CompactContactList(Arrays.asList(contact("1", "Ana"),
+                contact("2", "Bruno"), contact("3", "Carla")));
+        CompactContactList newList = new CompactContactList(Arrays.asList(contact("1", "Ana"),
+                contact("3", "Carla Souza"), contact("4", "Daniel")));
+
+        ContactListDiff diff = ContactListDiff.compute(oldList, oldList.size(), newList,
+                newList.size());
+
+        assertFalse(diff.isEmpty());
+        assertEquals(1, diff.getInserted());
+        assertEquals(1, diff.getRemoved());
+        assertEquals(1, diff.getChanged());
+        assertEquals(0, diff.getNewPosition(0));
+        assertEquals(-1, diff.getNewPosition(1));
+        assertEquals(-1, diff.getNewPosition(2));
+        assertArrayEquals(new int[] { 1, 2 }, diff.getAddedPositions());
+    }
+
+    @Test
+    public void appendedContactsAreInsertedWithoutReadingTheList() {
+        CompactContactList list = new CompactContactList(Arrays.asList(contact("1", "Ana")));
+        list.add(contact("2", "Bruno"));
+
+        ContactListDiff diff = ContactListDiff.compute(list, 1, list, list.size());
+
+        assertEquals(1, diff.getInserted());
+        assertEquals(0, diff.getNewPosition(0));
+        assertArrayEquals(new int[] { 1 }, diff.getAddedPositions());
+    }
+
+    @Test
+    public void contactsWithoutIdAreMatchedByTheirData() {
+        CompactContactList oldList = new CompactContactList(Arrays.asList(
+                new Contact(null, "Ana", "https://plus.google.com/ana", null)));
+        CompactContactList newList = new CompactContactList(Arrays.asList(
+                new Contact(null, "Ana", "https://plus.google.com/ana", null),
+                new Contact(null, "Ana", "https://plus.google.com/ana2", null)));
+
+        ContactListDiff diff = ContactListDiff.compute(oldList, oldList.size(), newList,
+                newList.size());
+
+        assertEquals(1, diff.getInserted());
+        assertEquals(0, diff.getNewPosition(0));
+        assertFalse(newList.getStableId(0) == newList.getStableId(1));
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.rafasimionato.wmproject.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.BitSet;
+
+import org.junit.Test;
+
+/**
+ * Tests for searching contacts by name { @see ContactSearchIndex }. Each word
+ * of the query must start a word of the name, ignoring case and accents.
+ */
+public class ContactSearchIndexTest {
+
+    private static ContactSearchIndex index(String... names) {
+        CompactContactList list = new CompactContactList();
+        for (int i = 0; i < names.length; i++) {
+            list.add(new Contact(String.valueOf(i), names[i], "https://plus.google.com/" + i,
+                    null));
+        }
+        return new ContactSearchIndex(list, list.size());
+    }
+
+    private static int[] positions(BitSet matches) {
+        int[] positions = new int[matches.cardinality()];
+        int count = 0;
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+            positions[count++] = i;
+        }
+        return positions;
+    }
+
+    @Test
+    public void searchIgnoresAccentsAndCase() {
+        ContactSearchIndex index = index("Jos\u00e9 Almeida", "Josefa Lima", "Jo\u00e3o Rocha",
+                "Ana Ara\u00fajo");
+
+        assertArrayEquals(new int[] { 0, 1 }, positions(index.search("jose")));
+        assertArrayEquals(new int[] { 0, 1 }, positions(index.search("JOS\u00c9")));
+        assertArrayEquals(new int[] { 2 }, positions(index.search("joao")));
+        assertArrayEquals(new int[] { 3 }, positions(index.search("araujo")));
+    }
+
+    @Test
+    public void searchMatchesEachQueryTokenAsAPrefix() {
+        ContactSearchIndex index = index("Joana da Silva", "Joana Souza", "Silvia Santos",
+                "Jo\u00e3o Silveira");
+
+        assertArrayEquals(new int[] { 0, 3 }, positions(index.search("jo si")));
+        assertArrayEquals(new int[] { 0, 3 }, positions(index.search("si jo")));
+        assertArrayEquals(new int[] { 0 }, positions(index.search("joana  silva")));
+        // A name missing any query token does not match
+        assertArrayEquals(new int[0], positions(index.search("jo sa")));
+        // Query tokens only match the start of the tokens of a name
+        assertArrayEquals(new int[0], positions(index.search("ilva")));
+    }
+
+    @Test
+    public void searchPastTheLastTokenFindsNothing() {
+        ContactSearchIndex index = index("Ana Costa", "Bruno Dias", "Z\u00e9 Melo");
+
+        assertArrayEquals(new int[0], positions(index.search("zz")));
+        assertArrayEquals(new int[] { 2 }, positions(index.search("ze")));
+        assertArrayEquals(new int[0], positions(index.search("ana zz")));
+    }
+
+    @Test
+    public void emptyQueryMatchesAllContacts() {
+        ContactSearchIndex index = index("Ana Costa", "Bruno Dias");
+
+        assertNull(index.search(""));
+        assertNull(index.search(null));
+    }
+
+    @Test
+    public void tokenizeFoldsAndSplitsOnNonLetters() {
+        assertArrayEquals(new String[] { "jose", "d", "avila", "1up" },
+                ContactSearchIndex.tokenize("Jos\u00e9 D'\u00c1vila-1Up"));
+        assertEquals(0, ContactSearchIndex.tokenize(" - ").length);
+    }
+
+}
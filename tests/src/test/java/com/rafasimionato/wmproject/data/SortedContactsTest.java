@@ -0,0 +1,95 @@
+package com.rafasimionato.wmproject.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for the order of contacts by name { @see SortedContacts }. Updating
+ * an order with the difference to new contacts must give the same names, in
+ * the same order and sections, as sorting the new contacts from scratch.
+ */
+public class SortedContactsTest {
+
+    private static final String[] FIRST_NAMES = { "Ana", "Bruno", "Carla", "Daniel", "Elisa",
+            "Fabio", "Jose", "Julia", "1Up", "Ze" };
+
+    private static Contact contact(int id, String name) {
+        return new Contact(String.valueOf(id), name, "https://plus.google.com/" + id, null);
+    }
+
+    private static String randomName(Random random) {
+        return FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " "
+                + (char) ('A' + random.nextInt(26));
+    }
+
+    private static String[] sortedNames(SortedContacts sortedContacts) {
+        CompactContactList list = sortedContacts.getContactList();
+        int[] order = sortedContacts.getOrder(null);
+        String[] names = new String[order.length];
+        for (int i = 0; i < order.length; i++) {
+            names[i] = list.getName(order[i]) + "/" + sortedContacts.getSection(order[i]);
+        }
+        return names;
+    }
+
+    @Test
+    public void updateMergesAppendedContacts() {
+        Random random = new Random(1);
+        CompactContactList list = new CompactContactList();
+        for (int i = 0; i < 500; i++) {
+            list.add(contact(i, randomName(random)));
+        }
+        SortedContacts sorted = SortedContacts.sort(list, list.size());
+        int previousSize = list.size();
+        for (int i = 500; i < 800; i++) {
+            list.add(contact(i, randomName(random)));
+        }
+
+        SortedContacts updated = sorted.update(list, list.size(),
+                ContactListDiff.compute(list, previousSize, list, list.size()));
+
+        assertEquals(800, updated.size());
+        assertArrayEquals(sortedNames(SortedContacts.sort(list, list.size())),
+                sortedNames(updated));
+    }
+
+    @Test
+    public void updateMergesInsertedRemovedAndChangedContacts() {
+        Random random = new Random(2);
+        List<Contact> contacts = new ArrayList<Contact>();
+        for (int i = 0; i < 1000; i++) {
+            contacts.add(contact(i, randomName(random)));
+        }
+        CompactContactList oldList = new CompactContactList(contacts);
+        SortedContacts sorted = SortedContacts.sort(oldList, oldList.size());
+
+        // A reload in another order, with some contacts removed, renamed and
+        // inserted
+        List<Contact> reloaded = new ArrayList<Contact>();
+        for (int i = contacts.size() - 1; i >= 0; i--) {
+            if (i % 10 == 0) {
+                continue;
+            }
+            reloaded.add(i % 7 == 0 ? contact(i, randomName(random)) : contacts.get(i));
+        }
+        for (int i = 1000; i < 1100; i++) {
+            reloaded.add(contact(i, randomName(random)));
+        }
+        CompactContactList newList = new CompactContactList(reloaded);
+
+        ContactListDiff diff = ContactListDiff.compute(oldList, oldList.size(), newList,
+                newList.size());
+        SortedContacts updated = sorted.update(newList, newList.size(), diff);
+
+        assertEquals(newList.size(), updated.size());
+        assertArrayEquals(sortedNames(SortedContacts.sort(newList, newList.size())),
+                sortedNames(updated));
+    }
+
+}
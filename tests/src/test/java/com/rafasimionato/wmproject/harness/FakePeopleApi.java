@@ -0,0 +1,166 @@
+package com.rafasimionato.wmproject.harness;
+
+import java.util.Random;
+
+/**
+ * This is a stand-in for the visible people of the Google+ People API. It
+ * serves a given number of people in pages, each one delayed by a latency,
+ * with the same shape as the LoadPeopleResult and PersonBuffer of Google Play
+ * services, which can't be created outside a device { @see FakePage }.
+ * 
+ * People get random names, with the same seed always giving the same ones,
+ * and their avatars are served by a stand-in image server
+ * { @see StandInImageServer }.
+ */
+public class FakePeopleApi {
+
+    // People in each page, the most the People API returns in one page
+    public static final int PAGE_SIZE = 100;
+
+    private static final String[] FIRST_NAMES = { "Ana", "Andr\u00e9", "Beatriz", "Bruno",
+            "Carla", "Cl\u00e1udio", "Daniel", "D\u00e9bora", "Eduardo", "Elisa", "F\u00e1bio",
+            "Fernanda", "Gabriel", "Helena", "Igor", "Joana", "Jo\u00e3o", "Jos\u00e9",
+            "J\u00falia", "Lucas", "Marcos", "Maria", "M\u00f4nica", "Paulo", "Rafael", "Renata",
+            "S\u00e9rgio", "Tatiana", "Vitor", "Z\u00e9" };
+
+    private static final String[] LAST_NAMES = { "Almeida", "Ara\u00fajo", "Barbosa",
+            "Cardoso", "Carvalho", "Costa", "Dias", "Ferreira", "Gomes", "Lima", "Martins", "Melo",
+            "Oliveira", "Pereira", "Ribeiro", "Rocha", "Santos", "Silva", "Simionato", "Souza" };
+
+    private final String[][] people;
+    private volatile long latencyMillis = 0;
+
+    /**
+     * @param peopleCount
+     *            number of visible people served
+     * @param imageServer
+     *            server of the avatars of the people
+     * @param seed
+     *            seed of the random names
+     */
+    public FakePeopleApi(int peopleCount, StandInImageServer imageServer, long seed) {
+        Random random = new Random(seed);
+        people = new String[peopleCount][];
+        for (int i = 0; i < peopleCount; i++) {
+            String id = String.valueOf(100000000000000000L + i) + "123";
+            String name = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " "
+                    + LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+            people[i] = new String[] { id, name, "https://plus.google.com/" + id,
+                    imageServer.getAvatarUrl(id) + "?sz=50" };
+        }
+    }
+
+    /**
+     * It sets the time waited before returning each page.
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * It returns the number of visible people served.
+     */
+    public int getPeopleCount() {
+        return people.length;
+    }
+
+    /**
+     * It returns the page with the entry token, or the first one for a null
+     * token, after waiting the latency. It blocks, unlike the People API,
+     * which delivers the page to a callback.
+     */
+    public FakePage loadVisible(String pageToken) throws InterruptedException {
+        if (latencyMillis > 0) {
+            Thread.sleep(latencyMillis);
+        }
+        int start = pageToken == null ? 0 : Integer.parseInt(pageToken);
+        int end = Math.min(start + PAGE_SIZE, people.length);
+        return new FakePage(people, start, end, end < people.length ? String.valueOf(end)
+                : null);
+    }
+
+    /**
+     * It stands in for a LoadPeopleResult holding its person buffer : each
+     * get(i) creates a new person reference on the rows of the page, and the
+     * buffer can't be read once closed.
+     */
+    public static class FakePage {
+
+        private final String[][] people;
+        private final int start;
+        private final int end;
+        private final String nextPageToken;
+        private boolean closed = false;
+
+        FakePage(String[][] people, int start, int end, String nextPageToken) {
+            this.people = people;
+            this.start = start;
+            this.end = end;
+            this.nextPageToken = nextPageToken;
+        }
+
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
+
+        public int getCount() {
+            return end - start;
+        }
+
+        public FakePerson get(int position) {
+            if (closed) {
+                throw new IllegalStateException("Person buffer already closed");
+            }
+            return new FakePerson(people[start + position]);
+        }
+
+        public void close() {
+            closed = true;
+        }
+    }
+
+    /**
+     * It stands in for the Person returned by PersonBuffer.get.
+     */
+    public static class FakePerson {
+
+        private final String[] row;
+
+        FakePerson(String[] row) {
+            this.row = row;
+        }
+
+        public boolean hasId() {
+            return row[0] != null;
+        }
+
+        public String getId() {
+            return row[0];
+        }
+
+        public boolean hasDisplayName() {
+            return row[1] != null;
+        }
+
+        public String getDisplayName() {
+            return row[1];
+        }
+
+        public boolean hasUrl() {
+            return row[2] != null;
+        }
+
+        public String getUrl() {
+            return row[2];
+        }
+
+        public boolean hasImage() {
+            return row[3] != null;
+        }
+
+        public String getImageUrl() {
+            return row[3];
+        }
+    }
+
+}
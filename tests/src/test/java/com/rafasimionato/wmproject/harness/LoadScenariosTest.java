@@ -0,0 +1,338 @@
+package com.rafasimionato.wmproject.harness;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rafasimionato.wmproject.data.CompactContactList;
+import com.rafasimionato.wmproject.data.Contact;
+import com.rafasimionato.wmproject.data.ContactBatcher;
+import com.rafasimionato.wmproject.data.ContactSorter;
+import com.rafasimionato.wmproject.data.SortedContacts;
+import com.rafasimionato.wmproject.harness.FakePeopleApi.FakePage;
+import com.rafasimionato.wmproject.harness.FakePeopleApi.FakePerson;
+import com.rafasimionato.wmproject.image.AvatarSize;
+import com.rafasimionato.wmproject.image.KeepAliveHttpClient;
+
+/**
+ * Load scenarios for loading the contacts and their avatars against
+ * stand-ins for the People API { @see FakePeopleApi } and for the image
+ * server { @see StandInImageServer }, from 1k to 50k contacts on a fast and on
+ * a slow network. Each scenario prints its throughput and latencies.
+ * 
+ * Contacts are loaded the way FriendsList does : each page is converted into
+ * contacts on a serial executor while the next one is requested, and the
+ * contacts are handed in batches { @see ContactBatcher } to a single thread
+ * standing in for the UI one, which appends them to the list and sorts them
+ * as ContactAdapter does { @see ContactSorter }.
+ * 
+ * The scenarios take a while, so they only run with the load-scenarios Maven
+ * profile.
+ * 
+ * Then the avatars of the first contacts in the sorted list, the ones shown
+ * while scrolling the first screens, are downloaded with as many threads as
+ * the network executor has, through the http client shared by the download
+ * tasks { @see KeepAliveHttpClient }. BitmapHandlerDownloadTask itself needs
+ * AsyncTask and Bitmap, so only its requests are made here.
+ */
+public class LoadScenariosTest {
+
+    // Same as R.integer.image_network_threads, image_connection_timeout and
+    // image_socket_timeout
+    private static final int NETWORK_THREADS = 4;
+    private static final int CONNECTION_TIMEOUT = 15000;
+    private static final int SOCKET_TIMEOUT = 20000;
+
+    // Avatars downloaded in each scenario
+    private static final int SCROLLED_AVATARS = 200;
+
+    // Fast network : a few milliseconds per request, no errors
+    private static final long FAST_PAGE_LATENCY = 2;
+    private static final long FAST_AVATAR_LATENCY = 2;
+
+    // Slow network : hundreds of milliseconds per request, some errors
+    private static final long SLOW_PAGE_LATENCY = 20;
+    private static final long SLOW_AVATAR_LATENCY = 150;
+    private static final double SLOW_ERROR_RATE = 0.02;
+
+    private StandInImageServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new StandInImageServer();
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void oneThousandContactsOnFastNetwork() throws Exception {
+        runScenario("1k contacts, fast network", 1000, FAST_PAGE_LATENCY, FAST_AVATAR_LATENCY, 0);
+    }
+
+    @Test
+    public void tenThousandContactsOnFastNetwork() throws Exception {
+        runScenario("10k contacts, fast network", 10000, FAST_PAGE_LATENCY, FAST_AVATAR_LATENCY,
+                0);
+    }
+
+    @Test
+    public void fiftyThousandContactsOnFastNetwork() throws Exception {
+        runScenario("50k contacts, fast network", 50000, FAST_PAGE_LATENCY, FAST_AVATAR_LATENCY,
+                0);
+    }
+
+    @Test
+    public void oneThousandContactsOnSlowNetwork() throws Exception {
+        runScenario("1k contacts, slow network", 1000, SLOW_PAGE_LATENCY, SLOW_AVATAR_LATENCY,
+                SLOW_ERROR_RATE);
+    }
+
+    @Test
+    public void tenThousandContactsOnSlowNetwork() throws Exception {
+        runScenario("10k contacts, slow network", 10000, SLOW_PAGE_LATENCY, SLOW_AVATAR_LATENCY,
+                SLOW_ERROR_RATE);
+    }
+
+    @Test
+    public void fiftyThousandContactsOnSlowNetwork() throws Exception {
+        runScenario("50k contacts, slow network", 50000, SLOW_PAGE_LATENCY, SLOW_AVATAR_LATENCY,
+                SLOW_ERROR_RATE);
+    }
+
+    private void runScenario(String name, int contactCount, long pageLatency,
+            long avatarLatency, double errorRate) throws Exception {
+
+        FakePeopleApi peopleApi = new FakePeopleApi(contactCount, server, contactCount);
+        peopleApi.setLatencyMillis(pageLatency);
+        server.setLatencyMillis(avatarLatency);
+        server.setErrorRate(errorRate, HttpStatus.SC_SERVICE_UNAVAILABLE);
+
+        ContactLoad contactLoad = new ContactLoad();
+        contactLoad.run(peopleApi);
+        assertEquals(contactCount, contactLoad.contactSorter.getSortedContacts().size());
+
+        AvatarLoad avatarLoad = new AvatarLoad();
+        avatarLoad.run(contactLoad.contactSorter.getSortedContacts());
+        assertEquals(avatarLoad.latencies.length, avatarLoad.downloaded.get()
+                + avatarLoad.failed.get());
+        assertEquals(server.getErrorCount(), avatarLoad.failed.get());
+
+        System.out.println(name);
+        System.out.println(String.format(Locale.US,
+                "  contacts : %d in %d ms (%.0f/s), first shown after %d ms,"
+                        + " page latency p50 %d ms p95 %d ms",
+                contactCount, contactLoad.totalMillis,
+                contactCount * 1000.0 / Math.max(1, contactLoad.totalMillis),
+                contactLoad.firstShownMillis, percentile(contactLoad.pageLatencies, 50),
+                percentile(contactLoad.pageLatencies, 95)));
+        System.out.println(String.format(Locale.US,
+                "  avatars  : %d in %d ms (%.0f/s), %d failed,"
+                        + " latency p50 %d ms p95 %d ms p99 %d ms",
+                avatarLoad.latencies.length, avatarLoad.totalMillis,
+                avatarLoad.latencies.length * 1000.0 / Math.max(1, avatarLoad.totalMillis),
+                avatarLoad.failed.get(), percentile(avatarLoad.latencies, 50),
+                percentile(avatarLoad.latencies, 95), percentile(avatarLoad.latencies, 99)));
+    }
+
+    /**
+     * It loads all pages of people into sorted contacts.
+     */
+    private static class ContactLoad {
+
+        // Only touched on the UI thread
+        private final CompactContactList contactList = new CompactContactList();
+        private final ContactSorter contactSorter = new ContactSorter();
+
+        private long startNanos;
+        private long firstShownMillis = -1;
+        private long totalMillis;
+        private long[] pageLatencies;
+
+        void run(FakePeopleApi peopleApi) throws Exception {
+
+            ExecutorService converter = Executors.newSingleThreadExecutor();
+            final ExecutorService uiThread = Executors.newSingleThreadExecutor();
+            List<Future<?>> pagesShown = new ArrayList<Future<?>>();
+            final List<Long> latencies = new ArrayList<Long>();
+
+            startNanos = System.nanoTime();
+            String pageToken = null;
+            do {
+                final long requestNanos = System.nanoTime();
+                final FakePage page = peopleApi.loadVisible(pageToken);
+                pageToken = page.getNextPageToken();
+                final boolean lastPage = pageToken == null;
+                pagesShown.add(converter.submit(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        convert(page, uiThread);
+                        uiThread.submit(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                latencies.add((System.nanoTime() - requestNanos) / 1000000);
+                                if (lastPage) {
+                                    totalMillis = (System.nanoTime() - startNanos) / 1000000;
+                                }
+                            }
+                        });
+                    }
+                }));
+            } while (pageToken != null);
+
+            for (Future<?> pageShown : pagesShown) {
+                pageShown.get();
+            }
+            converter.shutdown();
+            uiThread.shutdown();
+            uiThread.awaitTermination(60, TimeUnit.SECONDS);
+
+            pageLatencies = toArray(latencies);
+        }
+
+        /**
+         * It reads each person of the page once, handing the contacts to the
+         * UI thread in batches, and closes the page.
+         */
+        private void convert(FakePage page, final ExecutorService uiThread) {
+            ContactBatcher batcher = new ContactBatcher(new ContactBatcher.BatchListener() {
+
+                @Override
+                public void onBatch(final Contact[] batch) {
+                    uiThread.submit(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            show(Arrays.asList(batch));
+                        }
+                    });
+                }
+            });
+            try {
+                int count = page.getCount();
+                for (int i = 0; i < count; i++) {
+                    FakePerson person = page.get(i);
+                    batcher.add(new Contact(person.hasId() ? person.getId() : null,
+                            person.hasDisplayName() ? person.getDisplayName() : null,
+                            person.hasUrl() ? person.getUrl() : null,
+                            person.hasImage() ? person.getImageUrl() : null));
+                }
+                batcher.flush();
+            } finally {
+                page.close();
+            }
+        }
+
+        /**
+         * It appends the batch to the list and sorts it, the first time from
+         * scratch and then by merging the appended contacts.
+         */
+        private void show(List<Contact> contacts) {
+            contactList.addAll(contacts);
+            if (contactSorter.sort(contactList, contactList.size()) == null) {
+                firstShownMillis = (System.nanoTime() - startNanos) / 1000000;
+            }
+        }
+    }
+
+    /**
+     * It downloads the avatars of the first sorted contacts.
+     */
+    private class AvatarLoad {
+
+        private final AtomicInteger downloaded = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private long[] latencies;
+        private long totalMillis;
+
+        void run(SortedContacts sortedContacts) throws Exception {
+
+            final HttpClient client = KeepAliveHttpClient.create(NETWORK_THREADS,
+                    CONNECTION_TIMEOUT, SOCKET_TIMEOUT);
+            ExecutorService networkExecutor = Executors.newFixedThreadPool(NETWORK_THREADS);
+            int[] order = sortedContacts.getOrder(null);
+            CompactContactList contactList = sortedContacts.getContactList();
+            int count = Math.min(SCROLLED_AVATARS, order.length);
+            latencies = new long[count];
+            Future<?>[] futures = new Future<?>[count];
+
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                final String url = AvatarSize.toUrl(contactList.getPictureUrl(order[i]),
+                        AvatarSize.DEFAULT_SIZE);
+                futures[i] = networkExecutor.submit(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        long requestNanos = System.nanoTime();
+                        download(client, url);
+                        latencies[index] = (System.nanoTime() - requestNanos) / 1000000;
+                    }
+                });
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            totalMillis = (System.nanoTime() - startNanos) / 1000000;
+
+            networkExecutor.shutdown();
+            client.getConnectionManager().shutdown();
+        }
+
+        private void download(HttpClient client, String url) {
+            try {
+                HttpResponse response = client.execute(new HttpGet(url));
+                byte[] data = EntityUtils.toByteArray(response.getEntity());
+                if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK
+                        && data.length > 0) {
+                    downloaded.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private static long[] toArray(List<Long> values) {
+        long[] array = new long[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * It returns the value below which the entry percent of the values fall.
+     */
+    private static long percentile(long[] values, int percent) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(sorted.length * percent / 100.0) - 1;
+        return sorted[Math.max(0, index)];
+    }
+
+}
@@ -0,0 +1,264 @@
+package com.rafasimionato.wmproject.harness;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This is a local stand-in for the Google+ image server. It serves avatar
+ * bytes over HTTP/1.1 keep-alive connections on a loopback port, so download
+ * code can run on a plain JVM against it.
+ * 
+ * Every response can be delayed by a latency, and a share of the requests can
+ * be answered with an error instead of the avatar. The size of the avatars is
+ * fixed. Requests carrying an If-None-Match header with the ETag of the
+ * avatars are answered as not modified.
+ * 
+ * The server counts the connections it accepted and the requests it served,
+ * which is how connection reuse is checked.
+ */
+public class StandInImageServer {
+
+    // ETag sent with every avatar
+    public static final String ETAG = "\"stand-in\"";
+
+    private final ServerSocket serverSocket;
+    private final Thread acceptThread;
+    private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicInteger errorCount = new AtomicInteger();
+
+    private volatile int avatarSize = 4 * 1024;
+    private volatile long latencyMillis = 0;
+    private volatile double errorRate = 0;
+    private volatile int errorStatus = 500;
+    private final Random random = new Random(0);
+
+    private volatile boolean stopped = false;
+
+    /**
+     * It starts the server on any free loopback port.
+     */
+    public StandInImageServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        acceptThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "StandInImageServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * It returns the URL of the avatar with the entry name, without any size
+     * parameter.
+     */
+    public String getAvatarUrl(String name) {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/avatars/" + name
+                + "/photo.jpg";
+    }
+
+    /**
+     * It sets the number of bytes of each avatar served.
+     */
+    public void setAvatarSize(int avatarSize) {
+        this.avatarSize = avatarSize;
+    }
+
+    /**
+     * It sets the time waited before answering each request.
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * It sets the share of requests, from 0 to 1, answered with the entry
+     * error status instead of the avatar.
+     */
+    public void setErrorRate(double errorRate, int errorStatus) {
+        this.errorRate = errorRate;
+        this.errorStatus = errorStatus;
+    }
+
+    /**
+     * It returns how many connections were accepted so far.
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * It returns how many requests were answered so far, including errors.
+     */
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * It returns how many requests were answered with an error so far.
+     */
+    public int getErrorCount() {
+        return errorCount.get();
+    }
+
+    /**
+     * It stops accepting connections and closes the open ones.
+     */
+    public void stop() throws IOException {
+        stopped = true;
+        serverSocket.close();
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private void acceptConnections() {
+        while (!stopped) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            connectionCount.incrementAndGet();
+            sockets.add(socket);
+            Thread connectionThread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        serveConnection(socket);
+                    } catch (IOException e) {
+                        // The client closed or aborted the connection
+                    } finally {
+                        sockets.remove(socket);
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // Nothing else to be done
+                        }
+                    }
+                }
+            }, "StandInImageServer connection");
+            connectionThread.setDaemon(true);
+            connectionThread.start();
+        }
+    }
+
+    /**
+     * It answers the requests received on the entry connection, one after the
+     * other, until the client closes it.
+     */
+    private void serveConnection(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        String requestLine;
+        while ((requestLine = readLine(in)) != null) {
+            if (requestLine.length() == 0) {
+                continue;
+            }
+            boolean notModified = false;
+            String header;
+            while ((header = readLine(in)) != null && header.length() > 0) {
+                if (header.toLowerCase().startsWith("if-none-match:")
+                        && header.substring(14).trim().equals(ETAG)) {
+                    notModified = true;
+                }
+            }
+            if (header == null) {
+                return;
+            }
+
+            if (latencyMillis > 0) {
+                try {
+                    Thread.sleep(latencyMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            requestCount.incrementAndGet();
+            boolean error;
+            synchronized (random) {
+                error = random.nextDouble() < errorRate;
+            }
+            try {
+                if (error) {
+                    errorCount.incrementAndGet();
+                    writeResponse(out, errorStatus + " Error", null, new byte[0]);
+                } else if (notModified) {
+                    writeResponse(out, "304 Not Modified", ETAG, null);
+                } else {
+                    writeResponse(out, "200 OK", ETAG, new byte[avatarSize]);
+                }
+            } catch (SocketException e) {
+                // The client aborted the request
+                return;
+            }
+        }
+    }
+
+    private static void writeResponse(OutputStream out, String status, String eTag, byte[] body)
+            throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.1 ").append(status).append("\r\n");
+        sb.append("Connection: keep-alive\r\n");
+        if (eTag != null) {
+            sb.append("ETag: ").append(eTag).append("\r\n");
+        }
+        if (body != null) {
+            sb.append("Content-Type: image/jpeg\r\n");
+            sb.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        sb.append("\r\n");
+        // Headers and body are written at once, as a second small write would
+        // wait for the delayed acknowledgement of the first one
+        byte[] headers = sb.toString().getBytes("US-ASCII");
+        byte[] response = headers;
+        if (body != null) {
+            response = new byte[headers.length + body.length];
+            System.arraycopy(headers, 0, response, 0, headers.length);
+            System.arraycopy(body, 0, response, headers.length, body.length);
+        }
+        out.write(response);
+        out.flush();
+    }
+
+    /**
+     * It reads a line ended by CRLF, or returns null at the end of the stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = sb.length();
+                if (length > 0 && sb.charAt(length - 1) == '\r') {
+                    sb.setLength(length - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+}
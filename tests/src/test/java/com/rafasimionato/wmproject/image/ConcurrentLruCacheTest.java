@@ -0,0 +1,184 @@
+package com.rafasimionato.wmproject.image;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Tests for the concurrent LRU cache { @see ConcurrentLruCache }. Values are
+ * integers standing in for bitmaps, each one taking its own value from the
+ * budget.
+ * 
+ * The stress test runs many threads reading, writing and removing entries at
+ * the same time, and then checks that the LRU list was not corrupted : the
+ * size matches the entries left, and they are still evicted exactly in the
+ * order they are accessed.
+ */
+public class ConcurrentLruCacheTest {
+
+    private static final int STRESS_THREADS = 8;
+    private static final int STRESS_OPERATIONS = 200000;
+    private static final int STRESS_KEYS = 512;
+    private static final int STRESS_MAX_SIZE = 1024;
+
+    // A cache recording the keys of the evicted entries in eviction order
+    private static final class RecordingCache extends ConcurrentLruCache<Integer, Integer> {
+
+        final List<Integer> evicted = Collections.synchronizedList(new ArrayList<Integer>());
+
+        RecordingCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected int sizeOf(Integer key, Integer value) {
+            return value;
+        }
+
+        @Override
+        protected void entryEvicted(Integer key, Integer value) {
+            evicted.add(key);
+        }
+    }
+
+    @Test
+    public void evictsLeastRecentlyAccessedEntriesFirst() {
+        RecordingCache cache = new RecordingCache(10);
+        for (int key = 1; key <= 10; key++) {
+            cache.put(key, 1);
+        }
+
+        assertEquals(Integer.valueOf(1), cache.get(5));
+        assertEquals(Integer.valueOf(1), cache.get(3));
+        assertEquals(Integer.valueOf(1), cache.get(1));
+        cache.put(11, 1);
+        cache.put(12, 1);
+        cache.put(13, 1);
+
+        assertEquals(Arrays.asList(2, 4, 6), cache.evicted);
+        assertNotNull(cache.get(5));
+        assertNull(cache.get(2));
+        assertEquals(10, cache.size());
+        assertEquals(10, cache.count());
+    }
+
+    @Test
+    public void containsKeyDoesNotChangeTheEvictionOrder() {
+        RecordingCache cache = new RecordingCache(3);
+        cache.put(1, 1);
+        cache.put(2, 1);
+        cache.put(3, 1);
+
+        assertTrue(cache.containsKey(1));
+        cache.put(4, 1);
+
+        assertEquals(Arrays.asList(1), cache.evicted);
+        assertFalse(cache.containsKey(1));
+    }
+
+    @Test
+    public void replaysMoreHitsThanTheReadBufferHolds() {
+        RecordingCache cache = new RecordingCache(1000);
+        for (int key = 0; key < 1000; key++) {
+            cache.put(key, 1);
+        }
+        // Touching all entries in reverse order, far more hits than the
+        // read buffer slots, with no write in between
+        for (int key = 999; key >= 0; key--) {
+            cache.get(key);
+        }
+
+        cache.trimToSize(0);
+
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int key = 999; key >= 0; key--) {
+            expected.add(key);
+        }
+        assertEquals(expected, cache.evicted);
+    }
+
+    @Test
+    public void keepsLruOrderUnderConcurrentAccess() throws Exception {
+
+        final RecordingCache cache = new RecordingCache(STRESS_MAX_SIZE);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Thread[] threads = new Thread[STRESS_THREADS];
+        for (int t = 0; t < threads.length; t++) {
+            final long seed = t;
+            threads[t] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        start.await();
+                        for (int i = 0; i < STRESS_OPERATIONS; i++) {
+                            // Skewed keys, so some entries are hot
+                            int key = (int) (STRESS_KEYS * Math.pow(random.nextDouble(), 3));
+                            int operation = random.nextInt(100);
+                            if (operation < 80) {
+                                cache.get(key);
+                            } else if (operation < 97) {
+                                cache.put(key, 1 + random.nextInt(8));
+                            } else {
+                                cache.remove(key);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        // The size is the sum of the entries left, within the budget
+        int size = 0;
+        List<Integer> keys = new ArrayList<Integer>();
+        for (int key = 0; key < STRESS_KEYS; key++) {
+            Integer value = cache.get(key);
+            if (value != null) {
+                size += value;
+                keys.add(key);
+            }
+        }
+        assertEquals(size, cache.size());
+        assertEquals(keys.size(), cache.count());
+        assertTrue(cache.size() <= STRESS_MAX_SIZE);
+
+        // Accessing the entries left in a known order, they must be evicted
+        // in the same order, which only holds if the list is still sound
+        Collections.shuffle(keys, new Random(42));
+        for (Integer key : keys) {
+            cache.get(key);
+        }
+        cache.evicted.clear();
+        cache.trimToSize(0);
+
+        assertEquals(keys, cache.evicted);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.count());
+    }
+
+}
@@ -0,0 +1,140 @@
+package com.rafasimionato.wmproject.image;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rafasimionato.wmproject.harness.StandInImageServer;
+
+/**
+ * Tests for the http client shared by the download tasks
+ * { @see KeepAliveHttpClient }. Avatars are downloaded from a local stand-in
+ * server { @see StandInImageServer }, which counts the connections opened.
+ */
+public class KeepAliveHttpClientTest {
+
+    private static final int AVATARS = 200;
+    private static final int NETWORK_THREADS = 4;
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    private StandInImageServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new StandInImageServer();
+        server.setLatencyMillis(2);
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void sharedClientReusesConnections() throws Exception {
+
+        final HttpClient client = KeepAliveHttpClient.create(NETWORK_THREADS, TIMEOUT_MILLIS,
+                TIMEOUT_MILLIS);
+        int downloaded = downloadAvatars(new ClientProvider() {
+
+            @Override
+            public HttpClient get() {
+                return client;
+            }
+
+            @Override
+            public void release(HttpClient client) {
+            }
+        });
+        client.getConnectionManager().shutdown();
+
+        assertEquals(AVATARS, downloaded);
+        assertEquals(AVATARS, server.getRequestCount());
+        assertTrue("Connections opened : " + server.getConnectionCount(),
+                server.getConnectionCount() <= NETWORK_THREADS);
+    }
+
+    @Test
+    public void clientPerAvatarOpensConnectionPerAvatar() throws Exception {
+
+        int downloaded = downloadAvatars(new ClientProvider() {
+
+            @Override
+            public HttpClient get() {
+                return KeepAliveHttpClient.create(NETWORK_THREADS, TIMEOUT_MILLIS,
+                        TIMEOUT_MILLIS);
+            }
+
+            @Override
+            public void release(HttpClient client) {
+                client.getConnectionManager().shutdown();
+            }
+        });
+
+        assertEquals(AVATARS, downloaded);
+        assertEquals(AVATARS, server.getConnectionCount());
+    }
+
+    // It gives the client used by each download, and takes it back once the
+    // download is finished
+    private interface ClientProvider {
+
+        HttpClient get();
+
+        void release(HttpClient client);
+    }
+
+    /**
+     * It downloads all avatars with NETWORK_THREADS threads, as the network
+     * executor does, and returns how many were received.
+     */
+    private int downloadAvatars(final ClientProvider clients) throws Exception {
+
+        final AtomicInteger downloaded = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(NETWORK_THREADS);
+        Future<?>[] futures = new Future<?>[AVATARS];
+        for (int i = 0; i < AVATARS; i++) {
+            final String url = server.getAvatarUrl("person" + i) + "?sz=144";
+            futures[i] = executor.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    HttpClient client = clients.get();
+                    try {
+                        HttpResponse response = client.execute(new HttpGet(url));
+                        byte[] data = EntityUtils.toByteArray(response.getEntity());
+                        if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK
+                                && data.length > 0) {
+                            downloaded.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        throw new AssertionError(e);
+                    } finally {
+                        clients.release(client);
+                    }
+                }
+            });
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        return downloaded.get();
+    }
+
+}